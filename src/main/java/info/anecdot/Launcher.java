@@ -1,11 +1,15 @@
 package info.anecdot;
 
+import com.mitchellbosecke.pebble.PebbleEngine;
+import com.mitchellbosecke.pebble.boot.autoconfigure.PebbleProperties;
+import com.mitchellbosecke.pebble.extension.Extension;
 import com.mitchellbosecke.pebble.loader.FileLoader;
-import com.mitchellbosecke.pebble.loader.Loader;
+import com.mitchellbosecke.pebble.spring.extension.SpringExtension;
 import info.anecdot.content.SiteService;
 import info.anecdot.io.PathWatcher;
 import info.anecdot.servlet.FileLoaderDecorator;
-import info.anecdot.servlet.FileResourceResolver;
+import info.anecdot.servlet.StaticFileHandler;
+import info.anecdot.servlet.ThemeTemplateCache;
 import org.apache.catalina.connector.Connector;
 import org.keycloak.adapters.springboot.KeycloakSpringBootConfigResolver;
 import org.keycloak.adapters.springsecurity.KeycloakSecurityComponents;
@@ -24,7 +28,7 @@ import org.springframework.boot.web.server.WebServerFactoryCustomizer;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.*;
-import org.springframework.http.CacheControl;
+import org.springframework.core.Ordered;
 import org.springframework.http.HttpStatus;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
@@ -36,11 +40,12 @@ import org.springframework.security.web.authentication.session.RegisterSessionAu
 import org.springframework.security.web.authentication.session.SessionAuthenticationStrategy;
 import org.springframework.web.servlet.HandlerExceptionResolver;
 import org.springframework.web.servlet.ModelAndView;
-import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.handler.SimpleUrlHandlerMapping;
 
 import javax.servlet.RequestDispatcher;
 import java.io.FileNotFoundException;
+import java.util.Collections;
 import java.util.List;
 
 @SpringBootApplication(exclude = {
@@ -75,15 +80,13 @@ public class Launcher implements ApplicationRunner {
 			};
 		}
 
-		@Override
-		public void addResourceHandlers(ResourceHandlerRegistry registry) {
-			FileResourceResolver fileResourceResolver =
-					applicationContext.getBean(FileResourceResolver.class);
-
-			registry.addResourceHandler("/**")
-					.setCacheControl(CacheControl.empty())
-					.resourceChain(false)
-					.addResolver(fileResourceResolver);
+		@Bean
+		protected SimpleUrlHandlerMapping staticFileHandlerMapping(StaticFileHandler staticFileHandler) {
+			SimpleUrlHandlerMapping handlerMapping = new SimpleUrlHandlerMapping();
+			handlerMapping.setOrder(Ordered.LOWEST_PRECEDENCE - 1);
+			handlerMapping.setUrlMap(Collections.singletonMap("/**", staticFileHandler));
+
+			return handlerMapping;
 		}
 
 		@Override
@@ -115,9 +118,35 @@ public class Launcher implements ApplicationRunner {
 		}
 
 		@Bean(name = "pebbleLoader")
-		protected Loader<?> fileLoaderDecorator(SiteService siteService) {
+		protected FileLoaderDecorator fileLoaderDecorator(SiteService siteService) {
 			return new FileLoaderDecorator(siteService, new FileLoader());
 		}
+
+		@Bean
+		protected SpringExtension pebbleSpringExtension() {
+			return new SpringExtension();
+		}
+
+		@Bean(name = "pebbleEngine")
+		protected PebbleEngine pebbleEngine(FileLoaderDecorator pebbleLoader, List<Extension> extensions,
+											PebbleProperties properties, ThemeTemplateCache templateCache) {
+			PebbleEngine.Builder builder = new PebbleEngine.Builder()
+					.loader(pebbleLoader)
+					.extension(extensions.toArray(new Extension[0]))
+					.cacheActive(properties.isCache())
+					.strictVariables(properties.isStrictVariables())
+					.greedyMatchMethod(properties.isGreedyMatchMethod());
+
+			if (properties.isCache()) {
+				builder.templateCache(templateCache);
+			}
+
+			if (properties.getDefaultLocale() != null) {
+				builder.defaultLocale(properties.getDefaultLocale());
+			}
+
+			return builder.build();
+		}
 	}
 
 	@EnableWebSecurity
@@ -157,6 +186,9 @@ public class Launcher implements ApplicationRunner {
 	@Autowired
 	private SiteService siteService;
 
+	@Autowired
+	private ThemeTemplateCache themeTemplateCache;
+
 	@Override
 	public void run(ApplicationArguments args) throws Exception {
 		siteService.config();
@@ -164,6 +196,12 @@ public class Launcher implements ApplicationRunner {
 		siteService.getAllSites().forEach(site -> {
 			PathWatcher watcher = siteService.getWatcher(site);
 			siteService.start(watcher);
+
+			PathWatcher themeWatcher = siteService.getThemeWatcher(site);
+			if (themeWatcher != null) {
+				siteService.start(themeWatcher);
+				themeTemplateCache.precompile(site);
+			}
 		});
 	}
 
@@ -0,0 +1,54 @@
+package info.anecdot.content;
+
+import org.springframework.context.ApplicationEvent;
+
+import java.nio.file.Path;
+
+/**
+ * Published for every file a site's content or theme watcher reports.
+ *
+ * @author Stephan Grundner
+ */
+public class FileEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        VISITED,
+        CREATED,
+        MODIFIED,
+        DELETED
+    }
+
+    public enum Origin {
+        CONTENT,
+        THEME
+    }
+
+    private final Origin origin;
+    private final Kind kind;
+    private final Path path;
+
+    public Site getSite() {
+        return (Site) getSource();
+    }
+
+    public Origin getOrigin() {
+        return origin;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public FileEvent(Site site, Origin origin, Kind kind, Path path) {
+        super(site);
+        this.origin = origin;
+        this.kind = kind;
+        this.path = path;
+    }
+}
@@ -3,8 +3,18 @@ package info.anecdot.content;
 import javax.persistence.*;
 import java.net.URI;
 import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * When the tree below an item is stored in encoded form, value, attributes
+ * and sequences are decoded from {@link #tree} on first access instead of
+ * being read from the relational tables. The tree is loaded with the item,
+ * since items are used detached; the eager collections inherited from
+ * {@link Knot} are still queried, and are empty for encoded items.
+ *
  * @author Stephan Grundner
  */
 @Entity
@@ -29,6 +39,79 @@ public class Item extends Knot {
     @Convert(converter = URIConverter.class)
     private URI image;
 
+    @Convert(converter = TagsConverter.class)
+    private List<String> tags = Collections.emptyList();
+
+    @Lob
+    private byte[] tree;
+
+    @Transient
+    private volatile Knot content;
+
+    @Transient
+    private volatile KnotMap map;
+
+    private Knot content() {
+        Knot content = this.content;
+        if (content == null) {
+            content = KnotCodec.decode(tree);
+            for (Sequence sequence : content.getSequences()) {
+                sequence.setParent(this);
+            }
+
+            this.content = content;
+        }
+
+        return content;
+    }
+
+    KnotMap getMap() {
+        KnotMap map = this.map;
+        if (map == null) {
+            map = new KnotMap(this, Collections.emptyMap());
+            this.map = map;
+        }
+
+        return map;
+    }
+
+    boolean isEncoded() {
+        return tree != null;
+    }
+
+    void encode(Knot source) {
+        clearContent();
+        tree = KnotCodec.encode(source);
+        content = null;
+        map = null;
+    }
+
+    void clearTree() {
+        tree = null;
+        content = null;
+        map = null;
+    }
+
+    @Override
+    public String getValue() {
+        return isEncoded() ? content().getValue() : super.getValue();
+    }
+
+    @Override
+    public Collection<Sequence> getSequences() {
+        return isEncoded() ? content().getSequences() : super.getSequences();
+    }
+
+    @Override
+    public Sequence getSequence(String name) {
+        return isEncoded() ? content().getSequence(name) : super.getSequence(name);
+    }
+
+    @Override
+    public Map<String, String> getAttributes() {
+        return isEncoded() ? content().getAttributes() : super.getAttributes();
+    }
+
     public Site getSite() {
         return site;
     }
@@ -84,4 +167,12 @@ public class Item extends Knot {
     public void setImage(URI image) {
         this.image = image;
     }
+
+    public List<String> getTags() {
+        return tags != null ? tags : Collections.emptyList();
+    }
+
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
 }
@@ -0,0 +1,50 @@
+package info.anecdot.content;
+
+import org.springframework.context.ApplicationEvent;
+
+import java.net.URI;
+
+/**
+ * Published whenever an item of a site becomes visible or goes away.
+ *
+ * @author Stephan Grundner
+ */
+public class ItemEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        LOADED,
+        DELETED
+    }
+
+    private final Kind kind;
+    private final URI uri;
+    private final Item item;
+
+    public Site getSite() {
+        return (Site) getSource();
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * @return the loaded item, or {@code null} if the item was deleted
+     */
+    public Item getItem() {
+        return item;
+    }
+
+    public ItemEvent(Site site, Kind kind, URI uri, Item item) {
+        super(site);
+        this.kind = kind;
+        this.uri = uri;
+        this.item = item;
+    }
+}
@@ -0,0 +1,484 @@
+package info.anecdot.content;
+
+import org.springframework.util.StringUtils;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory indexes over the items of a site, answering {@link ItemQuery}s.
+ * <p>
+ * Items are kept sorted by URI, which doubles as a prefix tree, per type and
+ * by modification time. Listings sorted by URI or modification time walk
+ * these directly and stop after the requested page; other sort orders are
+ * computed once and kept until the next change. Tags are kept in an
+ * inverted index of sorted posting lists of item ids, which are intersected
+ * or merged to answer tag queries. Readers never block; changes are applied
+ * one at a time.
+ *
+ * @author Stephan Grundner
+ */
+public class ItemIndex {
+
+    private static final Comparator<Item> BY_URI = Comparator.comparing(ItemIndex::keyOf);
+
+    private static final Comparator<Item> BY_LAST_MODIFIED = Comparator
+            .comparing(Item::getLastModified, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(BY_URI);
+
+    private static final class UriPattern {
+
+        private final String prefix;
+        private final boolean exact;
+        private final Pattern pattern;
+
+        private boolean matches(String uri) {
+            if (exact) {
+                return uri.equals(prefix);
+            }
+
+            return uri.startsWith(prefix) && (pattern == null || pattern.matcher(uri).matches());
+        }
+
+        private static UriPattern parse(String like) {
+            int i = 0;
+            while (i < like.length() && like.charAt(i) != '%' && like.charAt(i) != '_') {
+                i++;
+            }
+
+            String prefix = like.substring(0, i);
+            if (i == like.length()) {
+                return new UriPattern(prefix, true, null);
+            }
+
+            if (i == like.length() - 1 && like.charAt(i) == '%') {
+                return new UriPattern(prefix, false, null);
+            }
+
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : like.toCharArray()) {
+                if (c == '%' || c == '_') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+
+                    regex.append(c == '%' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+
+            return new UriPattern(prefix, false, Pattern.compile(regex.toString(), Pattern.DOTALL));
+        }
+
+        private UriPattern(String prefix, boolean exact, Pattern pattern) {
+            this.prefix = prefix;
+            this.exact = exact;
+            this.pattern = pattern;
+        }
+    }
+
+    private static final class Order {
+
+        private final String key;
+        private final boolean descending;
+
+        private Order(String key, boolean descending) {
+            this.key = key;
+            this.descending = descending;
+        }
+    }
+
+    private static final class Sorted {
+
+        private final long version;
+        private final List<Item> items;
+
+        private Sorted(long version, List<Item> items) {
+            this.version = version;
+            this.items = items;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Item> itemByUri = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, Item>> itemByUriByType = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Item> itemsByLastModified = new ConcurrentSkipListSet<>(BY_LAST_MODIFIED);
+
+    private final ConcurrentMap<String, Integer> idByUri = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Item> itemById = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, int[]> postingsByTag = new ConcurrentHashMap<>();
+    private int nextId;
+
+    private final ConcurrentMap<String, Sorted> sortedBySort = new ConcurrentHashMap<>();
+    private volatile long version;
+
+    private static String keyOf(Item item) {
+        return item.getUri().toString();
+    }
+
+    private static String normalizeTag(String tag) {
+        return tag.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static int[] insert(int[] postings, int id) {
+        int i = Arrays.binarySearch(postings, id);
+        if (i >= 0) {
+            return postings;
+        }
+
+        i = -(i + 1);
+        int[] copy = new int[postings.length + 1];
+        System.arraycopy(postings, 0, copy, 0, i);
+        copy[i] = id;
+        System.arraycopy(postings, i, copy, i + 1, postings.length - i);
+
+        return copy;
+    }
+
+    private static int[] delete(int[] postings, int id) {
+        int i = Arrays.binarySearch(postings, id);
+        if (i < 0) {
+            return postings;
+        }
+
+        int[] copy = new int[postings.length - 1];
+        System.arraycopy(postings, 0, copy, 0, i);
+        System.arraycopy(postings, i + 1, copy, i, postings.length - i - 1);
+
+        return copy;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                result[n++] = a[i++];
+            } else if (a[i] > b[j]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        while (i < a.length) {
+            result[n++] = a[i++];
+        }
+
+        while (j < b.length) {
+            result[n++] = b[j++];
+        }
+
+        return Arrays.copyOf(result, n);
+    }
+
+    private static List<Order> parseSort(String sort) {
+        List<Order> orders = new ArrayList<>();
+        for (String token : StringUtils.tokenizeToStringArray(sort, ",")) {
+            String[] parts = StringUtils.tokenizeToStringArray(token, " \t");
+            String key = parts[0];
+            if (key.startsWith("i.")) {
+                key = key.substring(2);
+            }
+
+            boolean descending = parts.length > 1 && "desc".equalsIgnoreCase(parts[1]);
+            orders.add(new Order(key, descending));
+        }
+
+        return orders;
+    }
+
+    private static Function<Item, String> sequenceValue(String name) {
+        return item -> {
+            Sequence sequence = item.getSequence(name);
+            if (sequence == null || sequence.getKnots().isEmpty()) {
+                return null;
+            }
+
+            return sequence.getKnots().get(0).getValue();
+        };
+    }
+
+    private static Comparator<Item> comparatorOf(Order order) {
+        Comparator<Item> comparator;
+        switch (order.key) {
+            case "uri":
+                comparator = BY_URI;
+                break;
+            case "lastModified":
+                comparator = Comparator.comparing(Item::getLastModified, Comparator.nullsFirst(Comparator.naturalOrder()));
+                break;
+            case "type":
+                comparator = Comparator.comparing(Item::getType, Comparator.nullsFirst(Comparator.naturalOrder()));
+                break;
+            case "description":
+                comparator = Comparator.comparing(Item::getDescription, Comparator.nullsFirst(Comparator.naturalOrder()));
+                break;
+            case "syncId":
+                comparator = Comparator.comparing(Item::getSyncId, Comparator.nullsFirst(Comparator.naturalOrder()));
+                break;
+            default:
+                comparator = Comparator.comparing(sequenceValue(order.key), Comparator.nullsFirst(Comparator.naturalOrder()));
+        }
+
+        return order.descending ? comparator.reversed() : comparator;
+    }
+
+    private static Comparator<Item> comparatorOf(List<Order> orders) {
+        Comparator<Item> comparator = null;
+        for (Order order : orders) {
+            comparator = comparator == null ? comparatorOf(order) : comparator.thenComparing(comparatorOf(order));
+        }
+
+        return comparator == null ? BY_URI : comparator.thenComparing(BY_URI);
+    }
+
+    public Item getItem(URI uri) {
+        return itemByUri.get(uri.toString());
+    }
+
+    public int size() {
+        return itemByUri.size();
+    }
+
+    private void unindex(Item item, int id) {
+        for (String tag : item.getTags()) {
+            String key = normalizeTag(tag);
+            int[] postings = postingsByTag.get(key);
+            if (postings != null) {
+                postings = delete(postings, id);
+                if (postings.length == 0) {
+                    postingsByTag.remove(key);
+                } else {
+                    postingsByTag.put(key, postings);
+                }
+            }
+        }
+
+        itemsByLastModified.remove(item);
+        if (item.getType() != null) {
+            Map<String, Item> itemByUri = itemByUriByType.get(item.getType());
+            if (itemByUri != null) {
+                itemByUri.remove(keyOf(item));
+            }
+        }
+    }
+
+    public synchronized void put(Item item) {
+        String key = keyOf(item);
+        Integer id = idByUri.get(key);
+        if (id == null) {
+            id = nextId++;
+            idByUri.put(key, id);
+        }
+
+        Item previous = itemByUri.put(key, item);
+        itemById.put(id, item);
+        if (previous != null) {
+            unindex(previous, id);
+        }
+
+        int itemId = id;
+        for (String tag : item.getTags()) {
+            postingsByTag.compute(normalizeTag(tag), (name, postings) ->
+                    postings != null ? insert(postings, itemId) : new int[] {itemId});
+        }
+
+        itemsByLastModified.add(item);
+        if (item.getType() != null) {
+            itemByUriByType.computeIfAbsent(item.getType(), type -> new ConcurrentSkipListMap<>())
+                    .put(key, item);
+        }
+
+        version++;
+    }
+
+    public synchronized void remove(URI uri) {
+        Item previous = itemByUri.remove(uri.toString());
+        if (previous != null) {
+            int id = idByUri.remove(uri.toString());
+            itemById.remove(id);
+            unindex(previous, id);
+            version++;
+        }
+    }
+
+    private List<Item> getSorted(String sort, Comparator<Item> comparator) {
+        long version = this.version;
+        Sorted sorted = sortedBySort.get(sort);
+        if (sorted == null || sorted.version != version) {
+            List<Item> items = new ArrayList<>(itemByUri.values());
+            items.sort(comparator);
+            sorted = new Sorted(version, Collections.unmodifiableList(items));
+            sortedBySort.put(sort, sorted);
+        }
+
+        return sorted.items;
+    }
+
+    private static List<Item> page(Iterator<Item> items, UriPattern uri, String type, int offset, int limit) {
+        List<Item> page = new ArrayList<>(Math.min(limit, 64));
+        while (page.size() < limit && items.hasNext()) {
+            Item item = items.next();
+            if ((uri != null && !uri.matches(keyOf(item)))
+                    || (type != null && !type.equals(item.getType()))) {
+                continue;
+            }
+
+            if (offset > 0) {
+                offset--;
+            } else {
+                page.add(item);
+            }
+        }
+
+        return page;
+    }
+
+    private NavigableMap<String, Item> byUri(UriPattern uri, String type, boolean descending, String after) {
+        NavigableMap<String, Item> items = itemByUri;
+        if (type != null) {
+            items = itemByUriByType.get(type);
+            if (items == null) {
+                return Collections.emptyNavigableMap();
+            }
+        }
+
+        if (uri != null) {
+            items = items.subMap(uri.prefix, true, uri.prefix + Character.MAX_VALUE, true);
+        }
+
+        if (descending) {
+            items = items.descendingMap();
+        }
+
+        if (after != null) {
+            items = items.tailMap(after, false);
+        }
+
+        return items;
+    }
+
+    private NavigableSet<Item> byLastModified(boolean descending, String after) {
+        NavigableSet<Item> items = descending ? itemsByLastModified.descendingSet() : itemsByLastModified;
+        Item last = after != null ? itemByUri.get(after) : null;
+
+        return last != null ? items.tailSet(last, false) : items;
+    }
+
+    private Iterator<Item> after(List<Item> items, Comparator<Item> comparator, String after) {
+        Item last = after != null ? itemByUri.get(after) : null;
+        if (last != null) {
+            int i = Collections.binarySearch(items, last, comparator);
+            items = items.subList(i >= 0 ? i + 1 : -(i + 1), items.size());
+        }
+
+        return items.iterator();
+    }
+
+    private int[] getPostings(Collection<String> tags, boolean any) {
+        int[] result = null;
+        for (String tag : tags) {
+            int[] postings = postingsByTag.getOrDefault(normalizeTag(tag), new int[0]);
+            if (result == null) {
+                result = postings;
+            } else {
+                result = any ? union(result, postings) : intersect(result, postings);
+            }
+
+            if (!any && result.length == 0) {
+                break;
+            }
+        }
+
+        return result != null ? result : new int[0];
+    }
+
+    private List<Item> tagged(Collection<String> tags, boolean any) {
+        int[] postings = getPostings(tags, any);
+        List<Item> items = new ArrayList<>(postings.length);
+        for (int id : postings) {
+            Item item = itemById.get(id);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+
+        return items;
+    }
+
+    public List<Item> find(ItemQuery query) {
+        UriPattern uri = StringUtils.hasText(query.getUri()) ? UriPattern.parse(query.getUri()) : null;
+        String type = StringUtils.hasText(query.getType()) ? query.getType() : null;
+        String after = StringUtils.hasText(query.getAfter()) ? query.getAfter() : null;
+        int offset = Math.max(0, query.getOffset());
+        int limit = Math.max(0, query.getLimit());
+
+        if (uri != null && uri.exact) {
+            Item item = itemByUri.get(uri.prefix);
+            return item != null && offset == 0 && limit > 0 && (type == null || type.equals(item.getType()))
+                    ? Collections.singletonList(item)
+                    : Collections.emptyList();
+        }
+
+        List<Order> orders = parseSort(query.getSort());
+        Iterator<Item> items;
+        if (query.getTags() != null && !query.getTags().isEmpty()) {
+            Comparator<Item> comparator = comparatorOf(orders);
+            List<Item> tagged = tagged(query.getTags(), query.isAnyTag());
+            tagged.sort(comparator);
+            items = after(tagged, comparator, after);
+        } else if (orders.isEmpty() || (orders.size() == 1 && "uri".equals(orders.get(0).key))) {
+            boolean descending = !orders.isEmpty() && orders.get(0).descending;
+            items = byUri(uri, type, descending, after).values().iterator();
+        } else if (orders.size() == 1 && "lastModified".equals(orders.get(0).key)) {
+            items = byLastModified(orders.get(0).descending, after).iterator();
+        } else {
+            Comparator<Item> comparator = comparatorOf(orders);
+            items = after(getSorted(query.getSort().trim(), comparator), comparator, after);
+        }
+
+        return page(items, uri, type, offset, limit);
+    }
+
+    public static ItemIndex of(Collection<Item> items) {
+        ItemIndex index = new ItemIndex();
+        items.forEach(index::put);
+
+        return index;
+    }
+}
@@ -0,0 +1,284 @@
+package info.anecdot.content;
+
+import org.springframework.util.StringUtils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds an {@link Item} tree straight from a StAX event stream.
+ * <p>
+ * Elements carrying a {@code ref} attribute are resolved in a second pass
+ * against an index of element paths and ids. Supported expressions are
+ * plain paths relative to the document element ({@code a/b}, {@code a[2]/b}),
+ * absolute paths ({@code /root/a/b}), {@code current()/a} and {@code id('x')}.
+ * <p>
+ * Instances are not thread-safe and are meant to be used for a single document.
+ *
+ * @author Stephan Grundner
+ */
+class ItemParser {
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private static final Pattern ID_PATTERN = Pattern.compile("^id\\(\\s*['\"]([^'\"]*)['\"]\\s*\\)$");
+
+    private static final String CURRENT = "current()";
+
+    private static class Frame {
+
+        private final Knot knot;
+        private final String path;
+        private final String positionalPath;
+
+        private boolean hasChildElements;
+        private StringBuilder text;
+        private Map<String, Integer> positionByName;
+
+        private int nextPosition(String name) {
+            if (positionByName == null) {
+                positionByName = new HashMap<>();
+            }
+
+            return positionByName.merge(name, 1, Integer::sum);
+        }
+
+        private Frame(Knot knot, String path, String positionalPath) {
+            this.knot = knot;
+            this.path = path;
+            this.positionalPath = positionalPath;
+        }
+    }
+
+    private Item item;
+
+    private final Map<String, Knot> knotByPath = new HashMap<>();
+    private final Map<String, Knot> knotById = new HashMap<>();
+    private final Map<Knot, String> refByKnot = new IdentityHashMap<>();
+
+    private static String qualifiedName(String prefix, String localName) {
+        if (StringUtils.isEmpty(prefix)) {
+            return localName;
+        }
+
+        return prefix + ':' + localName;
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private Knot startElement(XMLStreamReader reader, Deque<Frame> frames) throws XMLStreamException {
+        String name = qualifiedName(reader.getPrefix(), reader.getLocalName());
+
+        Knot knot;
+        Frame frame;
+
+        Frame parent = frames.peek();
+        if (parent == null) {
+            item = new Item();
+            item.setType(name);
+            knot = item;
+            frame = new Frame(knot, "", "");
+        } else {
+            parent.hasChildElements = true;
+            parent.text = null;
+
+            Sequence sequence = parent.knot.getSequence(name);
+            if (sequence == null) {
+                sequence = new Sequence();
+                parent.knot.addSequence(name, sequence);
+            }
+
+            knot = new Knot();
+            sequence.appendKnot(knot);
+
+            int position = parent.nextPosition(name);
+            String path = parent.path.isEmpty() ? name : parent.path + '/' + name;
+            String positionalPath = (parent.positionalPath.isEmpty() ? "" : parent.positionalPath + '/')
+                    + name + '[' + position + ']';
+            knotByPath.putIfAbsent(path, knot);
+            knotByPath.put(positionalPath, knot);
+
+            frame = new Frame(knot, path, positionalPath);
+        }
+
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String attributeName = qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i));
+            String value = reader.getAttributeValue(i);
+            knot.getAttributes().put(attributeName, value);
+
+            if ("id".equals(attributeName)) {
+                knotById.putIfAbsent(value, knot);
+            }
+        }
+
+        String ref = knot.getAttributes().get("ref");
+        if (parent != null && StringUtils.hasText(ref)) {
+            refByKnot.put(knot, ref);
+            skipElement(reader);
+
+            return knot;
+        }
+
+        frame.text = new StringBuilder();
+        frames.push(frame);
+
+        return knot;
+    }
+
+    private void endElement(Deque<Frame> frames) {
+        Frame frame = frames.pop();
+        if (!frame.hasChildElements) {
+            frame.knot.setValue(frame.text.toString());
+        }
+    }
+
+    private void resolveAll(Knot knot, Set<Knot> resolving) {
+        if (resolving.contains(knot)) {
+            throw new IllegalStateException("Circular reference " + knot.getAttributes().get("ref"));
+        }
+
+        resolve(knot, resolving);
+
+        for (Sequence sequence : knot.getSequences()) {
+            for (Knot child : sequence.getKnots()) {
+                resolveAll(child, resolving);
+            }
+        }
+    }
+
+    private void resolve(Knot knot, Set<Knot> resolving) {
+        String ref = refByKnot.remove(knot);
+        if (ref == null) {
+            return;
+        }
+
+        Knot target = find(ref);
+        if (target == null) {
+            throw new IllegalStateException("Unresolvable reference " + ref);
+        }
+
+        resolving.add(knot);
+        resolveAll(target, resolving);
+        knot.getAttributes().clear();
+        knot.copyFrom(target);
+        resolving.remove(knot);
+    }
+
+    private void resolveReferences() {
+        Set<Knot> resolving = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Knot knot : new ArrayList<>(refByKnot.keySet())) {
+            resolve(knot, resolving);
+        }
+    }
+
+    private static String toPositionalPath(String path) {
+        StringBuilder positionalPath = new StringBuilder();
+        for (String step : StringUtils.delimitedListToStringArray(path, "/")) {
+            if (positionalPath.length() > 0) {
+                positionalPath.append('/');
+            }
+
+            positionalPath.append(step);
+            if (step.indexOf('[') < 0) {
+                positionalPath.append("[1]");
+            }
+        }
+
+        return positionalPath.toString();
+    }
+
+    /**
+     * Looks up a knot of the parsed document by the expression forms
+     * described in the class comment.
+     */
+    Knot find(String expression) {
+        String path = expression.trim();
+
+        Matcher matcher = ID_PATTERN.matcher(path);
+        if (matcher.matches()) {
+            return knotById.get(matcher.group(1));
+        }
+
+        if (path.startsWith(CURRENT)) {
+            path = path.substring(CURRENT.length());
+            if (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+        } else if (path.startsWith("/")) {
+            path = path.substring(1);
+
+            int i = path.indexOf('/');
+            String root = i < 0 ? path : path.substring(0, i);
+            if (!root.equals(item.getType()) && !root.equals(item.getType() + "[1]")) {
+                return null;
+            }
+
+            path = i < 0 ? "" : path.substring(i + 1);
+        } else if (path.startsWith("./")) {
+            path = path.substring(2);
+        }
+
+        if (path.isEmpty() || ".".equals(path)) {
+            return item;
+        }
+
+        if (path.indexOf('[') >= 0) {
+            path = toPositionalPath(path);
+        }
+
+        return knotByPath.get(path);
+    }
+
+    Item parse(InputStream inputStream) throws XMLStreamException {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(inputStream);
+        Deque<Frame> frames = new ArrayDeque<>();
+
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        startElement(reader, frames);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        endElement(frames);
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        Frame frame = frames.peek();
+                        if (frame != null && frame.text != null) {
+                            frame.text.append(reader.getTextCharacters(),
+                                    reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        resolveReferences();
+
+        return item;
+    }
+}
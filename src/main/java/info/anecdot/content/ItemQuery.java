@@ -0,0 +1,95 @@
+package info.anecdot.content;
+
+import java.util.Collection;
+
+/**
+ * Criteria for listing the items of a site from its {@link ItemIndex}.
+ * <p>
+ * The {@code uri} is a pattern as known from {@code like}, where {@code %}
+ * matches any number and {@code _} exactly one character. The {@code sort}
+ * is a comma separated list of keys, each optionally followed by
+ * {@code asc} or {@code desc}; keys are {@code uri}, {@code type},
+ * {@code lastModified}, {@code description}, {@code syncId} or the name of a
+ * sequence, in which case the value of its first knot is compared. Pages
+ * are selected either by {@code offset} or by passing the URI of the last
+ * item of the previous page as {@code after}. Items may further be
+ * restricted to those having all, or with {@code anyTag} any, of the given
+ * {@code tags}, which are compared ignoring case.
+ *
+ * @author Stephan Grundner
+ */
+public class ItemQuery {
+
+    private String uri;
+    private String type;
+    private Collection<String> tags;
+    private boolean anyTag;
+    private String sort;
+    private String after;
+    private int offset;
+    private int limit = Integer.MAX_VALUE;
+
+    public String getUri() {
+        return uri;
+    }
+
+    public void setUri(String uri) {
+        this.uri = uri;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public Collection<String> getTags() {
+        return tags;
+    }
+
+    public void setTags(Collection<String> tags) {
+        this.tags = tags;
+    }
+
+    public boolean isAnyTag() {
+        return anyTag;
+    }
+
+    public void setAnyTag(boolean anyTag) {
+        this.anyTag = anyTag;
+    }
+
+    public String getSort() {
+        return sort;
+    }
+
+    public void setSort(String sort) {
+        this.sort = sort;
+    }
+
+    public String getAfter() {
+        return after;
+    }
+
+    public void setAfter(String after) {
+        this.after = after;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+}
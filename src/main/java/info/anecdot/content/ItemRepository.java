@@ -1,10 +1,12 @@
 package info.anecdot.content;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.net.URI;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -13,8 +15,15 @@ import java.util.List;
 @Repository
 public interface ItemRepository extends JpaRepository<Item, Long> {
 
-    @Query("from Item where uri = ?1")
-    Item findItemByURI(URI uri);
+    @Query("from Item i where i.site = ?1 and i.uri = ?2")
+    Item findItemBySiteAndURI(Site site, URI uri);
+
+    @Query("from Item i where i.site = ?1 and i.uri in ?2")
+    List<Item> findAllItemsBySiteAndURIIn(Site site, Collection<URI> uris);
+
+    @Modifying
+    @Query("update Item i set i.syncId = ?1 where i.id in ?2")
+    int updateSyncId(String syncId, Collection<Long> ids);
 
     @Query("from Item i where i.uri like ?1")
     List<Item> findAllItemsByURILike(String uri);
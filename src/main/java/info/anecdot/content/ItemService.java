@@ -1,24 +1,19 @@
 package info.anecdot.content;
 
-import com.sun.org.apache.xml.internal.utils.DefaultErrorHandler;
-import info.anecdot.xml.DomAndXPathSupport;
-import org.apache.commons.collections4.map.AbstractMapDecorator;
-import org.apache.commons.collections4.map.LazyMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.StringUtils;
-import org.w3c.dom.*;
-import org.xml.sax.SAXException;
 
 import javax.persistence.EntityManager;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -28,12 +23,13 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Stephan Grundner
  */
 @Service
-public class ItemService implements DomAndXPathSupport {
+public class ItemService {
 
     private static final Logger LOG = LoggerFactory.getLogger(ItemService.class);
 
@@ -43,15 +39,110 @@ public class ItemService implements DomAndXPathSupport {
     @Autowired
     private EntityManager entityManager;
 
-    private XPath xPath;
+    @Autowired
+    private Environment environment;
 
-    @Override
-    public XPath getXPath() {
-        if (xPath == null) {
-            xPath = XPathFactory.newInstance().newXPath();
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    private final Map<String, ItemSnapshot> snapshotBySiteName = new ConcurrentHashMap<>();
+    private final Map<String, ItemIndex> indexBySiteName = new ConcurrentHashMap<>();
+    private final Map<String, Map<URI, Item>> pendingBySiteName = new ConcurrentHashMap<>();
+    private final Map<String, Long> contentVersionBySiteName = new ConcurrentHashMap<>();
+
+    private static void afterCommit(Runnable runnable) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    runnable.run();
+                }
+            });
+        } else {
+            runnable.run();
         }
+    }
+
+    /**
+     * @return the time of the latest change to any item of the site, so
+     * pages listing other items can tell when they are outdated
+     */
+    public long getContentVersion(Site site) {
+        return contentVersionBySiteName.getOrDefault(site.getName(), 0L);
+    }
+
+    private void touchContent(Site site) {
+        contentVersionBySiteName.merge(site.getName(), System.currentTimeMillis(),
+                (version, now) -> Math.max(version + 1, now));
+    }
+
+    public ItemSnapshot getSnapshot(Site site) {
+        return snapshotBySiteName.getOrDefault(site.getName(), ItemSnapshot.EMPTY);
+    }
+
+    /**
+     * @return the indexes over the items of the site's current snapshot
+     */
+    public ItemIndex getIndex(Site site) {
+        return indexBySiteName.computeIfAbsent(site.getName(), name -> new ItemIndex());
+    }
 
-        return xPath;
+    public List<Item> findItems(Site site, ItemQuery query) {
+        return getIndex(site).find(query);
+    }
+
+    /**
+     * Changes made while a site is busy are staged and only become visible
+     * once {@link #publishSnapshot(Site)} is called.
+     */
+    private void putItem(Site site, Item item) {
+        if (site.isBusy()) {
+            pendingBySiteName.computeIfAbsent(site.getName(), name -> new ConcurrentHashMap<>())
+                    .put(item.getUri(), item);
+        } else {
+            snapshotBySiteName.compute(site.getName(), (name, snapshot) ->
+                    Optional.ofNullable(snapshot).orElse(ItemSnapshot.EMPTY).with(item));
+            getIndex(site).put(item);
+        }
+
+        touchContent(site);
+        eventPublisher.publishEvent(new ItemEvent(site, ItemEvent.Kind.LOADED, item.getUri(), item));
+    }
+
+    private void removeItem(Site site, URI uri) {
+        Map<URI, Item> pending = pendingBySiteName.get(site.getName());
+        if (pending != null) {
+            pending.remove(uri);
+        }
+
+        snapshotBySiteName.computeIfPresent(site.getName(), (name, snapshot) -> snapshot.without(uri));
+        getIndex(site).remove(uri);
+
+        touchContent(site);
+        eventPublisher.publishEvent(new ItemEvent(site, ItemEvent.Kind.DELETED, uri, null));
+    }
+
+    /**
+     * Replaces the snapshot of the site by the items staged while it was
+     * busy; sites not busy have nothing staged and keep their snapshot.
+     */
+    public void publishSnapshot(Site site) {
+        if (!site.isBusy()) {
+            LOG.warn("Not publishing snapshot of site {}, which is not busy", site.getName());
+
+            return;
+        }
+
+        Map<URI, Item> pending = pendingBySiteName.remove(site.getName());
+        ItemSnapshot snapshot = new ItemSnapshot(new HashMap<>(
+                Optional.ofNullable(pending).orElse(Collections.emptyMap())));
+        snapshotBySiteName.put(site.getName(), snapshot);
+        indexBySiteName.put(site.getName(), ItemIndex.of(snapshot.getItems()));
+
+        LOG.info("Published {} items for site {}", snapshot.size(), site.getName());
+
+        touchContent(site);
+        eventPublisher.publishEvent(new SnapshotEvent(site));
     }
 
     public Item findItemBySiteAndURI(Site site, URI uri) {
@@ -59,18 +150,23 @@ public class ItemService implements DomAndXPathSupport {
             uri = URI.create(site.getHome());
         }
 
-        return itemRepository.findItemByURI(uri);
+        return getSnapshot(site).getItem(uri);
     }
 
     public Item findItemBySiteAndURI(Site site, String uri) {
         return findItemBySiteAndURI(site, URI.create(uri));
     }
 
+    Item findStoredItemBySiteAndURI(Site site, URI uri) {
+        return itemRepository.findItemBySiteAndURI(site, uri);
+    }
+
     @Transactional
     public boolean deleteItemBySiteAndURI(Site site, URI uri) {
-        Item item = findItemBySiteAndURI(site, uri);
+        Item item = findStoredItemBySiteAndURI(site, uri);
         if (item != null) {
             itemRepository.delete(item);
+            afterCommit(() -> removeItem(site, uri));
 
             return true;
         }
@@ -78,116 +174,207 @@ public class ItemService implements DomAndXPathSupport {
         return false;
     }
 
-    @Transactional
-    public Item saveItem(Item item) {
-        Site site = item.getSite();
-        if (deleteItemBySiteAndURI(site, item.getUri())) {
-            entityManager.flush();
+    private static void mergeKnot(Knot target, Knot source) {
+        if (!Objects.equals(target.getValue(), source.getValue())) {
+            target.setValue(source.getValue());
         }
 
-        return itemRepository.saveAndFlush(item);
-    }
+        Map<String, String> attributes = target.getAttributes();
+        attributes.keySet().retainAll(source.getAttributes().keySet());
+        source.getAttributes().forEach((name, value) -> {
+            if (!Objects.equals(attributes.get(name), value)) {
+                attributes.put(name, value);
+            }
+        });
 
-    private boolean hasChildElements(Node node) {
-        NodeList children = node.getChildNodes();
-        if (children.getLength() == 0) {
-            return false;
+        for (Sequence sequence : new ArrayList<>(target.getSequences())) {
+            if (source.getSequence(sequence.getName()) == null) {
+                target.removeSequence(sequence.getName());
+            }
         }
 
-        for (int i = 0; i < children.getLength(); i++) {
-            Node child = children.item(i);
-            if (child.getNodeType() == Node.ELEMENT_NODE) {
-                return true;
+        for (Sequence sequence : source.getSequences()) {
+            Sequence existing = target.getSequence(sequence.getName());
+            if (existing == null) {
+                existing = new Sequence();
+                target.addSequence(sequence.getName(), existing);
             }
-        }
 
-        return false;
+            mergeSequence(existing, sequence);
+        }
     }
 
-    private boolean isRootNode(Node node) {
-        Node parentNode = node.getParentNode();
-        return parentNode != null && parentNode.getNodeType() == Node.DOCUMENT_NODE;
-    }
+    private static void mergeSequence(Sequence target, Sequence source) {
+        List<Knot> knots = source.getKnots();
+        int n = Math.min(target.getKnots().size(), knots.size());
+
+        for (int i = 0; i < n; i++) {
+            mergeKnot(target.getKnots().get(i), knots.get(i));
+        }
 
-    private Knot fromNode(Node node) {
+        for (int i = n; i < knots.size(); i++) {
+            Knot knot = new Knot();
+            knot.copyFrom(knots.get(i));
+            target.appendKnot(knot);
+        }
 
-        String ref = attribute("ref", node);
-        if (StringUtils.hasText(ref)) {
-            node = node(ref, node.getOwnerDocument().getDocumentElement());
+        while (target.getKnots().size() > knots.size()) {
+            target.removeKnot(target.getKnots().size() - 1);
         }
+    }
 
-        Knot knot;
+    /**
+     * With {@code anecdot.items.storage=encoded} the tree below an item is
+     * stored as a single blob on the item instead of in the knot, sequence
+     * and attribute tables.
+     */
+    private boolean isEncodedStorage() {
+        return "encoded".equalsIgnoreCase(environment.getProperty("anecdot.items.storage", "tables"));
+    }
 
-        if (isRootNode(node)) {
-            knot = new Item();
-            ((Item) knot).setType(node.getNodeName());
+    private void mergeItem(Item target, Item source) {
+        if (isEncodedStorage()) {
+            target.encode(source);
         } else {
-            knot = new Knot();
+            target.clearTree();
+            mergeKnot(target, source);
         }
 
-        if (hasChildElements(node)) {
+        target.setSite(source.getSite());
+        target.setUri(source.getUri());
+        target.setType(source.getType());
+        target.setLastModified(source.getLastModified());
+        target.setSyncId(source.getSyncId());
+        target.setDescription(source.getDescription());
+        target.setImage(source.getImage());
+        target.setTags(source.getTags());
+    }
 
-            NodeList children = node.getChildNodes();
-            for (int i = 0; i < children.getLength(); i++) {
-                Node childNode = children.item(i);
-                if (childNode.getNodeName().startsWith("#")) {
-                    continue;
-                }
+    /**
+     * Writes many items of a site in one transaction.
+     * <p>
+     * Items that were loaded from the database only get their sync id updated.
+     * Parsed items are merged into the stored tree of the same URI, so that
+     * only changed rows are written; new items are persisted as a copy.
+     * The given items are never modified, so a failed batch can be retried.
+     */
+    @Transactional
+    public List<Item> saveItems(Site site, List<Item> items) {
+        List<Item> saved = new ArrayList<>(items.size());
+
+        Map<String, List<Long>> idsBySyncId = new HashMap<>();
+        List<Item> parsed = new ArrayList<>();
+        for (Item item : items) {
+            if (item.getId() != null) {
+                idsBySyncId.computeIfAbsent(item.getSyncId(), syncId -> new ArrayList<>())
+                        .add(item.getId());
+                saved.add(item);
+            } else {
+                parsed.add(item);
+            }
+        }
 
-                String childName = childNode.getNodeName();
-                Sequence sequence = knot.getSequence(childName);
-                if (sequence == null) {
-                    sequence = new Sequence();
-                    knot.addSequence(childName, sequence);
+        idsBySyncId.forEach(itemRepository::updateSyncId);
+
+        if (!parsed.isEmpty()) {
+            Map<URI, Item> storedByUri = new HashMap<>();
+            List<URI> uris = new ArrayList<>(parsed.size());
+            parsed.forEach(item -> uris.add(item.getUri()));
+            itemRepository.findAllItemsBySiteAndURIIn(site, uris)
+                    .forEach(stored -> storedByUri.put(stored.getUri(), stored));
+
+            for (Item item : parsed) {
+                Item stored = storedByUri.get(item.getUri());
+                if (stored != null) {
+                    mergeItem(stored, item);
+                } else {
+                    stored = new Item();
+                    mergeItem(stored, item);
+                    entityManager.persist(stored);
+                    storedByUri.put(stored.getUri(), stored);
                 }
 
-                sequence.appendKnot(fromNode(childNode));
+                saved.add(stored);
             }
-        } else {
-            knot.setValue(node.getTextContent());
         }
 
-        NamedNodeMap attributes = node.getAttributes();
-        if (attributes != null) {
-            for (int i = 0; i < attributes.getLength(); i++) {
-                Attr attribute = (Attr) attributes.item(i);
-                knot.getAttributes().put(attribute.getName(), attribute.getValue());
-            }
-        }
+        entityManager.flush();
+        afterCommit(() -> saved.forEach(item -> putItem(site, item)));
 
-        return knot;
+        return saved;
     }
 
-    private void loadMeta(Document document, Item item) {
-        String expression = text("@meta", document.getDocumentElement());
+    @Transactional
+    public Item saveItem(Item item) {
+        return saveItems(item.getSite(), Collections.singletonList(item)).get(0);
+    }
+
+    private void loadMeta(ItemParser parser, Item item) {
+        String expression = item.getAttributes().get("meta");
         if (StringUtils.isEmpty(expression)) {
             expression = "current()/meta";
         }
 
-        Node meta = node(expression, document.getDocumentElement());
+        Knot meta = parser.find(expression);
         if (meta != null) {
-            Node description = node("description", meta, true);
-            item.setDescription(description.getTextContent());
+            Knot description = first(meta, "description");
+            if (description != null) {
+                item.setDescription(description.getValue());
+            }
 
-            URI image = URI.create(text("image", meta));
-            if (StringUtils.hasLength(image.getPath())) {
-                item.setImage(image);
+            Knot image = first(meta, "image");
+            if (image != null && StringUtils.hasLength(image.getValue())) {
+                URI uri = URI.create(image.getValue());
+                if (StringUtils.hasLength(uri.getPath())) {
+                    item.setImage(uri);
+                }
             }
+
+            item.setTags(parseTags(meta));
         }
     }
 
-    @Transactional
-//    @CacheEvict(cacheNames = "items", key = "{#site.host, #site.toURI(#file)}")
-    public Item loadItem(Site site, Path file) throws IOException {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    /**
+     * Tags are either given as a comma separated list in {@code tags} or
+     * one per {@code tag}.
+     */
+    private static List<String> parseTags(Knot meta) {
+        Set<String> tags = new LinkedHashSet<>();
+
+        Knot list = first(meta, "tags");
+        if (list != null && list.getValue() != null) {
+            for (String tag : StringUtils.commaDelimitedListToStringArray(list.getValue())) {
+                if (StringUtils.hasText(tag)) {
+                    tags.add(tag.trim());
+                }
+            }
+        }
+
+        Sequence sequence = meta.getSequence("tag");
+        if (sequence != null) {
+            for (Knot tag : sequence.getKnots()) {
+                if (StringUtils.hasText(tag.getValue())) {
+                    tags.add(tag.getValue().trim());
+                }
+            }
+        }
+
+        return tags.isEmpty() ? Collections.emptyList() : new ArrayList<>(tags);
+    }
 
-        try (InputStream inputStream = Files.newInputStream(file)) {
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            db.setErrorHandler(new DefaultErrorHandler());
+    private static Knot first(Knot knot, String name) {
+        Sequence sequence = knot.getSequence(name);
+        if (sequence != null && !sequence.getKnots().isEmpty()) {
+            return sequence.getKnots().get(0);
+        }
 
-            Document document = db.parse(inputStream);
+        return null;
+    }
 
-            Item item = (Item) fromNode(document.getDocumentElement());
+    public Item parseItem(Site site, Path file) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(file))) {
+            ItemParser parser = new ItemParser();
+            Item item = parser.parse(inputStream);
             item.setSite(site);
             item.setSyncId(site.getSyncId());
 
@@ -200,18 +387,25 @@ public class ItemService implements DomAndXPathSupport {
                     ZoneOffset.systemDefault());
             item.setLastModified(lastModified);
 
-            loadMeta(document, item);
+            loadMeta(parser, item);
 
-            return saveItem(item);
-        } catch (SAXException | ParserConfigurationException e) {
+            return item;
+        } catch (XMLStreamException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Transactional
+//    @CacheEvict(cacheNames = "items", key = "{#site.host, #site.toURI(#file)}")
+    public Item loadItem(Site site, Path file) throws IOException {
+        return saveItem(parseItem(site, file));
+    }
+
     @Transactional
     public void deleteAllObsoleteItems(Site site) {
         List<Item> items = itemRepository.findAllObsolete(site);
         itemRepository.deleteAll(items);
+        afterCommit(() -> items.forEach(item -> removeItem(site, item.getUri())));
 
         int n = items.size();
         if (n > 0) {
@@ -219,54 +413,19 @@ public class ItemService implements DomAndXPathSupport {
         }
     }
 
-    private <K> Map<K, Object> createMap() {
-        return LazyMap.lazyMap(new LinkedHashMap<K, Object>() {
-            @Override
-            public boolean containsKey(Object key) {
-                return true;
-            }
-        }, this::createMap);
-    }
-
     public Map<String, Object> toMap(Knot knot, Map<String, Object> parent) {
-        Map<String, Object> map = createMap();
-
-        map.put("#payload", knot);
-        map.put("#knot", knot);
-        map.put("#name", Optional.ofNullable(knot.getSequence()).map(Sequence::getName).orElse(null));
-        map.put("#value", knot.getValue());
-        map.put("#parent", new AbstractMapDecorator<String, Object>(parent) {
-            @Override
-            public String toString() {
-                Map<String, Object> decorated = decorated();
-                return decorated.getClass().getName() + '@' + System.identityHashCode(decorated);
-            }
-        });
-
-        List<Object> children = new ArrayList<>();
-
-        knot.getSequences().forEach((sequence) -> {
-            Map<Object, Object> values = createMap();
-            int i = 0;
-
-            for (Knot child : sequence.getKnots()) {
-                Map<String, Object> childMap = toMap(child, map);
-                if (i == 0) {
-                    values.putAll(childMap);
-                }
-                values.put(Integer.toString(i++), childMap);
-            }
-
-            map.put(sequence.name, values);
-            children.add(values);
-        });
-
-        map.put("#children", children);
-
-        return map;
+        return new KnotMap(knot, parent);
     }
 
+    /**
+     * The model of an item is built once per item instance; items are
+     * replaced rather than modified when their file changes.
+     */
     public Map<String, Object> toMap(Knot payload) {
+        if (payload instanceof Item) {
+            return ((Item) payload).getMap();
+        }
+
         return toMap(payload, Collections.emptyMap());
     }
 }
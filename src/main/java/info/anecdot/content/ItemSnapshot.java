@@ -0,0 +1,53 @@
+package info.anecdot.content;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable view of all loaded items of a site, keyed by URI.
+ *
+ * @author Stephan Grundner
+ */
+public final class ItemSnapshot {
+
+    static final ItemSnapshot EMPTY = new ItemSnapshot(Collections.emptyMap());
+
+    private final Map<URI, Item> itemByUri;
+
+    public Item getItem(URI uri) {
+        return itemByUri.get(uri);
+    }
+
+    public Collection<Item> getItems() {
+        return Collections.unmodifiableCollection(itemByUri.values());
+    }
+
+    public int size() {
+        return itemByUri.size();
+    }
+
+    ItemSnapshot with(Item item) {
+        Map<URI, Item> copy = new HashMap<>(itemByUri);
+        copy.put(item.getUri(), item);
+
+        return new ItemSnapshot(copy);
+    }
+
+    ItemSnapshot without(URI uri) {
+        if (!itemByUri.containsKey(uri)) {
+            return this;
+        }
+
+        Map<URI, Item> copy = new HashMap<>(itemByUri);
+        copy.remove(uri);
+
+        return new ItemSnapshot(copy);
+    }
+
+    ItemSnapshot(Map<URI, Item> itemByUri) {
+        this.itemByUri = itemByUri;
+    }
+}
@@ -0,0 +1,99 @@
+package info.anecdot.content;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Persists parsed items on a single background thread, fed through a
+ * bounded queue so that parsing threads block once it is full. Items are
+ * written in batches of up to {@code batchSize} per transaction.
+ *
+ * @author Stephan Grundner
+ */
+class ItemWriter implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ItemWriter.class);
+
+    private static final Item END = new Item();
+
+    private final ItemService itemService;
+    private final Site site;
+    private final int batchSize;
+    private final BlockingQueue<Item> queue;
+    private final Thread thread;
+
+    private void write(List<Item> items) {
+        try {
+            itemService.saveItems(site, items);
+        } catch (Exception e) {
+            if (items.size() == 1) {
+                LOG.error("Error saving item " + items.get(0).getUri(), e);
+            } else {
+                items.forEach(item -> write(Collections.singletonList(item)));
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean done = false;
+            while (!done) {
+                List<Item> items = new ArrayList<>(batchSize);
+                items.add(queue.take());
+                queue.drainTo(items, batchSize - 1);
+
+                int end = items.indexOf(END);
+                if (end >= 0) {
+                    items = items.subList(0, end);
+                    done = true;
+                }
+
+                if (!items.isEmpty()) {
+                    write(items);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void submit(Item item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Waits until all submitted items have been written.
+     */
+    void close() {
+        submit(END);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    ItemWriter(ItemService itemService, Site site, int batchSize, int capacity) {
+        this.itemService = itemService;
+        this.site = site;
+        this.batchSize = batchSize;
+        queue = new ArrayBlockingQueue<>(capacity);
+        thread = new Thread(this, "item-writer-" + site.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
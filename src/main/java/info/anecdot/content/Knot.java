@@ -1,10 +1,7 @@
 package info.anecdot.content;
 
 import javax.persistence.*;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
  * @author Stephan Grundner
@@ -16,7 +13,8 @@ import java.util.Map;
 public class Knot {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "knot")
+    @SequenceGenerator(name = "knot", sequenceName = "knot_seq", allocationSize = 100)
     private Long id;
 
     @Column(insertable = false, updatable = false)
@@ -87,6 +85,44 @@ public class Knot {
 
         return removed;
     }
+
+    void clearContent() {
+        value = null;
+        attributes.clear();
+
+        for (String name : new ArrayList<>(sequences.keySet())) {
+            removeSequence(name);
+        }
+    }
+
+    /**
+     * Copies value, attributes and a deep copy of all sequences of the given knot.
+     */
+    void copyFrom(Knot source) {
+        setValue(source.getValue());
+        attributes.putAll(source.getAttributes());
+
+        for (Sequence sequence : source.getSequences()) {
+            Sequence copy = new Sequence();
+            addSequence(sequence.getName(), copy);
+
+            for (Knot knot : sequence.getKnots()) {
+                Knot child = new Knot();
+                child.copyFrom(knot);
+                copy.appendKnot(child);
+            }
+        }
+    }
+
+    public Sequence removeSequence(String name) {
+        Sequence removed = sequences.remove(name);
+        if (removed != null) {
+            removed.setParent(null);
+            removed.setName(null);
+        }
+
+        return removed;
+    }
     
     public Item getItem() {
         if (this instanceof Item) {
@@ -0,0 +1,170 @@
+package info.anecdot.content;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a knot tree into a compact binary form and back.
+ * <p>
+ * A knot is written as its value, its attributes and its sequences, each
+ * count and length as a varint. Strings are length-prefixed UTF-8, where a
+ * length of zero stands for {@code null}. Element and attribute names are
+ * written once and referred to by index afterwards.
+ *
+ * @author Stephan Grundner
+ */
+final class KnotCodec {
+
+    private static final int VERSION = 1;
+
+    private static class Encoder {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        private final Map<String, Integer> indexByName = new HashMap<>();
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            out.write(value);
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length + 1);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+
+        private void writeName(String name) {
+            Integer index = indexByName.get(name);
+            if (index != null) {
+                writeVarint(index + 1);
+            } else {
+                indexByName.put(name, indexByName.size());
+                writeVarint(0);
+                writeString(name);
+            }
+        }
+
+        private void writeKnot(Knot knot) {
+            writeString(knot.getValue());
+
+            Map<String, String> attributes = knot.getAttributes();
+            writeVarint(attributes.size());
+            attributes.forEach((name, value) -> {
+                writeName(name);
+                writeString(value);
+            });
+
+            writeVarint(knot.getSequences().size());
+            for (Sequence sequence : knot.getSequences()) {
+                writeName(sequence.getName());
+
+                List<Knot> knots = sequence.getKnots();
+                writeVarint(knots.size());
+                for (Knot child : knots) {
+                    writeKnot(child);
+                }
+            }
+        }
+    }
+
+    private static class Decoder {
+
+        private final byte[] bytes;
+        private int position;
+        private final List<String> names = new ArrayList<>();
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[position++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private String readString() {
+            int length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+
+            String value = new String(bytes, position, length - 1, StandardCharsets.UTF_8);
+            position += length - 1;
+
+            return value;
+        }
+
+        private String readName() {
+            int index = readVarint();
+            if (index == 0) {
+                String name = readString();
+                names.add(name);
+
+                return name;
+            }
+
+            return names.get(index - 1);
+        }
+
+        private void readKnot(Knot knot) {
+            knot.setValue(readString());
+
+            for (int i = readVarint(); i > 0; i--) {
+                String name = readName();
+                knot.getAttributes().put(name, readString());
+            }
+
+            for (int i = readVarint(); i > 0; i--) {
+                Sequence sequence = new Sequence();
+                knot.addSequence(readName(), sequence);
+
+                for (int j = readVarint(); j > 0; j--) {
+                    Knot child = new Knot();
+                    readKnot(child);
+                    sequence.appendKnot(child);
+                }
+            }
+        }
+
+        private Decoder(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    static byte[] encode(Knot knot) {
+        Encoder encoder = new Encoder();
+        encoder.writeVarint(VERSION);
+        encoder.writeKnot(knot);
+
+        return encoder.out.toByteArray();
+    }
+
+    static Knot decode(byte[] bytes) {
+        Decoder decoder = new Decoder(bytes);
+        int version = decoder.readVarint();
+        if (version != VERSION) {
+            throw new IllegalStateException("Unsupported tree version " + version);
+        }
+
+        Knot knot = new Knot();
+        decoder.readKnot(knot);
+
+        return knot;
+    }
+
+    private KnotCodec() { }
+}
@@ -0,0 +1,166 @@
+package info.anecdot.content;
+
+import java.util.*;
+
+/**
+ * Map view over a {@link Knot}, as navigated by templates.
+ * <p>
+ * Besides the names of its sequences, a knot map answers {@code #knot},
+ * {@code #payload}, {@code #name}, {@code #value}, {@code #parent} and
+ * {@code #children}. A sequence map answers the index of each of its knots
+ * and otherwise delegates to the map of its first knot. Nested maps are
+ * created on first access and kept, so that looking up a property does not
+ * allocate once a model has been walked.
+ *
+ * @author Stephan Grundner
+ */
+public class KnotMap extends ModelMap {
+
+    private static int toIndex(String key) {
+        int length = key.length();
+        if (length == 0 || length > 9) {
+            return -1;
+        }
+
+        int index = 0;
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+
+            index = index * 10 + (c - '0');
+        }
+
+        return index;
+    }
+
+    private static class SequenceMap extends ModelMap {
+
+        private final Sequence sequence;
+        private final KnotMap parent;
+        private final KnotMap[] knots;
+
+        private KnotMap knot(int index) {
+            KnotMap knot = knots[index];
+            if (knot == null) {
+                knot = new KnotMap(sequence.getKnots().get(index), parent);
+                knots[index] = knot;
+            }
+
+            return knot;
+        }
+
+        @Override
+        public Object get(Object key) {
+            if (key instanceof String) {
+                int index = toIndex((String) key);
+                if (index >= 0) {
+                    return index < knots.length ? knot(index) : null;
+                }
+            }
+
+            return knots.length > 0 ? knot(0).get(key) : null;
+        }
+
+        @Override
+        protected void collect(Map<String, Object> entries) {
+            if (knots.length > 0) {
+                entries.putAll(knot(0));
+            }
+
+            for (int i = 0; i < knots.length; i++) {
+                entries.put(Integer.toString(i), knot(i));
+            }
+        }
+
+        private SequenceMap(Sequence sequence, KnotMap parent) {
+            this.sequence = sequence;
+            this.parent = parent;
+            knots = new KnotMap[sequence.getKnots().size()];
+        }
+    }
+
+    private final Knot knot;
+    private final Map<String, Object> parent;
+
+    private volatile Map<String, SequenceMap> sequences;
+    private volatile List<Object> children;
+
+    public Knot getKnot() {
+        return knot;
+    }
+
+    private String getName() {
+        Sequence sequence = knot.getSequence();
+        return sequence != null ? sequence.getName() : null;
+    }
+
+    private Map<String, SequenceMap> sequences() {
+        Map<String, SequenceMap> sequences = this.sequences;
+        if (sequences == null) {
+            Collection<Sequence> values = knot.getSequences();
+            if (values.isEmpty()) {
+                sequences = Collections.emptyMap();
+            } else {
+                sequences = new LinkedHashMap<>(values.size() * 2);
+                for (Sequence sequence : values) {
+                    sequences.put(sequence.getName(), new SequenceMap(sequence, this));
+                }
+            }
+
+            this.sequences = sequences;
+        }
+
+        return sequences;
+    }
+
+    private List<Object> children() {
+        List<Object> children = this.children;
+        if (children == null) {
+            children = Collections.unmodifiableList(new ArrayList<>(sequences().values()));
+            this.children = children;
+        }
+
+        return children;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+
+        switch ((String) key) {
+            case "#payload":
+            case "#knot":
+                return knot;
+            case "#name":
+                return getName();
+            case "#value":
+                return knot.getValue();
+            case "#parent":
+                return parent;
+            case "#children":
+                return children();
+            default:
+                return sequences().get(key);
+        }
+    }
+
+    @Override
+    protected void collect(Map<String, Object> entries) {
+        entries.put("#payload", knot);
+        entries.put("#knot", knot);
+        entries.put("#name", getName());
+        entries.put("#value", knot.getValue());
+        entries.put("#parent", parent);
+        entries.putAll(sequences());
+        entries.put("#children", children());
+    }
+
+    public KnotMap(Knot knot, Map<String, Object> parent) {
+        this.knot = knot;
+        this.parent = parent;
+    }
+}
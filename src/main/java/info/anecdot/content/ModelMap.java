@@ -0,0 +1,63 @@
+package info.anecdot.content;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Base for the read-only maps templates navigate. Entries are only
+ * collected when a map is iterated; lookups go through {@link #get(Object)}.
+ * Any key is reported as contained. Equality is identity, because models
+ * refer to their parents.
+ *
+ * @author Stephan Grundner
+ */
+abstract class ModelMap extends AbstractMap<String, Object> {
+
+    private volatile Set<Entry<String, Object>> entrySet;
+
+    protected abstract void collect(Map<String, Object> entries);
+
+    @Override
+    public abstract Object get(Object key);
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        Set<Entry<String, Object>> entrySet = this.entrySet;
+        if (entrySet == null) {
+            Map<String, Object> entries = new LinkedHashMap<>();
+            collect(entries);
+            entrySet = Collections.unmodifiableMap(entries).entrySet();
+            this.entrySet = entrySet;
+        }
+
+        return entrySet;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return true;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + '@' + System.identityHashCode(this);
+    }
+}
@@ -12,7 +12,8 @@ import java.util.List;
 public class Sequence {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "sequence")
+    @SequenceGenerator(name = "sequence", sequenceName = "sequence_seq", allocationSize = 100)
     private Long id;
 
     String name;
@@ -57,4 +58,11 @@ public class Sequence {
             knot.setSequence(this);
         }
     }
+
+    public Knot removeKnot(int index) {
+        Knot knot = knots.remove(index);
+        knot.setSequence(null);
+
+        return knot;
+    }
 }
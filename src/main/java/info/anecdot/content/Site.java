@@ -7,7 +7,11 @@ import org.springframework.util.StringUtils;
 import javax.persistence.*;
 import java.net.URI;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * @author Stephan Grundner
@@ -22,7 +26,7 @@ public class Site {
     @Column(unique = true)
     private String name;
 
-    private boolean busy;
+    private volatile boolean busy;
 
     private String home;
     private Locale locale;
@@ -38,6 +42,25 @@ public class Site {
 
     private String syncId;
 
+    private String pageCacheControl;
+    private String resourceCacheControl;
+
+    private String imaging;
+
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "site_image_preset")
+    @MapKeyColumn(name = "name")
+    @Column(name = "geometry")
+    private Map<String, String> imagePresets = new LinkedHashMap<>();
+
+    private String imageSizePolicy;
+
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "site_image_format")
+    @OrderColumn
+    @Column(name = "format")
+    private List<String> imageFormats = new ArrayList<>();
+
     public Long getId() {
         return id;
     }
@@ -116,6 +139,59 @@ public class Site {
         this.syncId = syncId;
     }
 
+    public String getPageCacheControl() {
+        return pageCacheControl;
+    }
+
+    public void setPageCacheControl(String pageCacheControl) {
+        this.pageCacheControl = pageCacheControl;
+    }
+
+    public String getResourceCacheControl() {
+        return resourceCacheControl;
+    }
+
+    public void setResourceCacheControl(String resourceCacheControl) {
+        this.resourceCacheControl = resourceCacheControl;
+    }
+
+    /**
+     * @return the bean name of the imaging service used by this site
+     */
+    public String getImaging() {
+        return imaging;
+    }
+
+    public void setImaging(String imaging) {
+        this.imaging = imaging;
+    }
+
+    /**
+     * @return named image sizes, mapping each name to a geometry
+     */
+    public Map<String, String> getImagePresets() {
+        return imagePresets;
+    }
+
+    /**
+     * @return how sizes other than presets are treated, one of
+     * {@code any}, {@code snap} or {@code reject}
+     */
+    public String getImageSizePolicy() {
+        return imageSizePolicy;
+    }
+
+    public void setImageSizePolicy(String imageSizePolicy) {
+        this.imageSizePolicy = imageSizePolicy;
+    }
+
+    /**
+     * @return the formats images may be converted to, in order of preference
+     */
+    public List<String> getImageFormats() {
+        return imageFormats;
+    }
+
     public URI toURI(Path file) {
         String uri = contentDirectory.relativize(file).toString();
         uri = FilenameUtils.removeExtension(uri);
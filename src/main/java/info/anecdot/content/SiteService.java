@@ -5,8 +5,6 @@ import info.anecdot.settings.SettingsService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.Cache;
-import org.springframework.cache.CacheManager;
 import org.springframework.context.ApplicationContext;
 import org.springframework.core.env.Environment;
 import org.springframework.core.env.PropertyResolver;
@@ -25,6 +23,8 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @author Stephan Grundner
@@ -50,7 +50,14 @@ public class SiteService {
         return getProperties(propertyResolver, key, Collections.emptyList());
     }
 
+    private volatile Map<String, Site> siteByHost = Collections.emptyMap();
+    private volatile List<Site> sites = Collections.emptyList();
+
     private final Map<String, PathWatcher> watcherBySiteName = new HashMap<>();
+    private final Map<String, PathWatcher> themeWatcherBySiteName = new HashMap<>();
+    private final Map<String, Long> themeVersionBySiteName = new ConcurrentHashMap<>();
+
+    private ForkJoinPool scanPool;
 
     @Autowired
     private ApplicationContext applicationContext;
@@ -64,26 +71,50 @@ public class SiteService {
     @Autowired
     private ItemService itemService;
 
-    @Autowired
-    private CacheManager cacheManager;
-
     @Autowired
     private TaskExecutor taskExecutor;
 
+    /**
+     * @return the configured sites, in the order they are configured
+     */
     public List<Site> getAllSites() {
-        return siteRepository.findAll();
+        return sites;
     }
 
     public PathWatcher getWatcher(Site site) {
         return watcherBySiteName.get(site.getName());
     }
 
+    public PathWatcher getThemeWatcher(Site site) {
+        return themeWatcherBySiteName.get(site.getName());
+    }
+
+    /**
+     * Returns a version of the site's theme, which is the latest modification
+     * time seen in the theme directory and grows with every change reported
+     * by its watcher.
+     */
+    public long getThemeVersion(Site site) {
+        return themeVersionBySiteName.getOrDefault(site.getName(), 0L);
+    }
+
+    private void touchTheme(Site site, long version) {
+        themeVersionBySiteName.merge(site.getName(), version, Math::max);
+    }
+
+    private void publishFileEvent(Site site, FileEvent.Origin origin, FileEvent.Kind kind, Path path) {
+        applicationContext.publishEvent(new FileEvent(site, origin, kind, path));
+    }
+
+    /**
+     * Looks up a configured site by its name or one of its aliases.
+     */
     public Site findSiteByName(String name) {
-        return siteRepository.findByName(name);
+        return name != null ? siteByHost.get(name) : null;
     }
 
     private Site findOrCreateSiteByName(String name) {
-        Site site = findSiteByName(name);
+        Site site = siteRepository.findByName(name);
         if (site == null) {
             site = new Site();
             site.setName(name);
@@ -93,11 +124,47 @@ public class SiteService {
         return site;
     }
 
+    /**
+     * Resolves the site of a request once and keeps it as a request attribute.
+     */
     public Site findSiteByRequest(HttpServletRequest request) {
-        return findSiteByName(request.getServerName());
+        Site site = (Site) request.getAttribute(Site.class.getName());
+        if (site == null) {
+            site = findSiteByName(request.getServerName());
+            if (site != null) {
+                request.setAttribute(Site.class.getName(), site);
+            }
+        }
+
+        return site;
     }
 
-    private void reload(Site site, Path file) {
+    private ForkJoinPool getScanPool() {
+        if (scanPool == null) {
+            Environment environment = applicationContext.getEnvironment();
+            int parallelism = environment.getProperty("anecdot.scan.parallelism", Integer.class,
+                    Runtime.getRuntime().availableProcessors());
+            if (parallelism > 1) {
+                scanPool = new ForkJoinPool(parallelism);
+            }
+        }
+
+        return scanPool;
+    }
+
+    private ItemWriter createItemWriter(Site site) {
+        Environment environment = applicationContext.getEnvironment();
+        int capacity = environment.getProperty("anecdot.scan.queue-capacity", Integer.class, 1000);
+        int batchSize = environment.getProperty("anecdot.scan.batch-size", Integer.class, 50);
+
+        return new ItemWriter(itemService, site, batchSize, capacity);
+    }
+
+    /**
+     * While the site is busy with its initial scan, this runs concurrently on
+     * the scan pool and parsed items are handed to the writer.
+     */
+    private void reload(Site site, Path file, ItemWriter writer) {
         try {
             String fileName = file.getFileName().toString();
 
@@ -114,21 +181,21 @@ public class SiteService {
             }
 
             URI uri = site.toURI(file);
-            Item item = itemService.findItemBySiteAndURI(site, uri);
+            Item item = itemService.findStoredItemBySiteAndURI(site, uri);
             if (item != null) {
                 BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
                 LocalDateTime lastModified = LocalDateTime.ofInstant(
                         fileAttributes.lastModifiedTime().toInstant(),
                         ZoneId.systemDefault());
                 if (lastModified.isAfter(item.getLastModified())) {
-                    itemService.loadItem(site, file);
+                    save(site, itemService.parseItem(site, file), writer);
                     LOG.info("Reloaded " + file);
                 } else {
                     item.setSyncId(site.getSyncId());
-                    item = itemService.saveItem(item);
+                    save(site, item, writer);
                 }
             } else {
-                itemService.loadItem(site, file);
+                save(site, itemService.parseItem(site, file), writer);
                 LOG.info("Loaded " + file);
             }
         } catch (Exception e) {
@@ -137,6 +204,14 @@ public class SiteService {
         }
     }
 
+    private void save(Site site, Item item, ItemWriter writer) {
+        if (site.isBusy()) {
+            writer.submit(item);
+        } else {
+            itemService.saveItem(item);
+        }
+    }
+
     private Site saveSite(Site site) {
         return siteRepository.save(site);
     }
@@ -146,6 +221,48 @@ public class SiteService {
                 .forEach(siteRepository::delete);
     }
 
+    private PathWatcher createThemeWatcher(Site site) throws IOException {
+        PathWatcher watcher = new PathWatcher(site.getThemeDirectory());
+        watcher.setPool(getScanPool());
+        watcher.setHandler(new PathWatcher.AbstractWatchHandler() {
+            private void changed(FileEvent.Kind kind, Path path) {
+                long version = getThemeVersion(site);
+                touchTheme(site, Math.max(version + 1, System.currentTimeMillis()));
+                publishFileEvent(site, FileEvent.Origin.THEME, kind, path);
+            }
+
+            @Override
+            public void visited(Path path) {
+                try {
+                    touchTheme(site, Files.getLastModifiedTime(path).toMillis());
+                } catch (IOException e) {
+                    LOG.warn("Error reading modification time of " + path, e);
+                }
+
+                if (Files.isRegularFile(path)) {
+                    publishFileEvent(site, FileEvent.Origin.THEME, FileEvent.Kind.VISITED, path);
+                }
+            }
+
+            @Override
+            public void created(Path path) {
+                changed(FileEvent.Kind.CREATED, path);
+            }
+
+            @Override
+            public void modified(Path path) {
+                changed(FileEvent.Kind.MODIFIED, path);
+            }
+
+            @Override
+            public void deleted(Path path, boolean regularFile) {
+                changed(FileEvent.Kind.DELETED, path);
+            }
+        });
+
+        return watcher;
+    }
+
     private void deleteItemByFile(Site site, Path file) {
         URI uri = site.toURI(file);
         itemService.deleteItemBySiteAndURI(site, uri);
@@ -156,20 +273,16 @@ public class SiteService {
         List<String> keys = getProperties(environment, "anecdot.sites");
 
         List<Site> sites = new ArrayList<>();
+        Map<String, Site> siteByHost = new HashMap<>();
 
         for (String key : keys) {
             String prefix = String.format("anecdot.site.%s", key);
             String name = environment.getProperty(prefix + ".host");
 
-            Cache cache = cacheManager.getCache("sites");
-            cache.evict(name);
-
             final Site site = findOrCreateSiteByName(name);
             site.setBusy(true);
             site.setSyncId(UUID.randomUUID().toString());
 
-//            List<String> names = getProperties(propertyResolver, prefix + ".aliases");
-//            site.getAliases().addAll(names);
 
             String content = environment.getProperty(prefix + ".base");
             if (StringUtils.hasText(content)) {
@@ -187,39 +300,106 @@ public class SiteService {
             Locale locale = environment.getProperty(prefix + ".locale", Locale.class);
             site.setLocale(locale);
 
-            Site saved = saveSite(site);
-            sites.add(saved);
-            cache.put(name, saved);
+            site.setPageCacheControl(environment.getProperty(prefix + ".cache-control.pages",
+                    environment.getProperty("anecdot.cache-control.pages")));
+            site.setResourceCacheControl(environment.getProperty(prefix + ".cache-control.resources",
+                    environment.getProperty("anecdot.cache-control.resources")));
+
+            site.setImaging(environment.getProperty(prefix + ".imaging",
+                    environment.getProperty("anecdot.imaging", "graphicsmagick")));
+
+            site.getImagePresets().clear();
+            List<String> presets = getProperties(environment, prefix + ".image-presets",
+                    getProperties(environment, "anecdot.image-presets"));
+            for (String preset : presets) {
+                String[] nameAndGeometry = preset.split(":", 2);
+                if (nameAndGeometry.length != 2) {
+                    throw new IllegalStateException("Invalid image preset " + preset + " for site " + name);
+                }
+
+                site.getImagePresets().put(nameAndGeometry[0].trim(), nameAndGeometry[1].trim());
+            }
+
+            site.setImageSizePolicy(environment.getProperty(prefix + ".image-size-policy",
+                    environment.getProperty("anecdot.image-size-policy", "snap")));
+
+            site.getImageFormats().clear();
+            getProperties(environment, prefix + ".image-formats", getProperties(environment, "anecdot.image-formats"))
+                    .stream()
+                    .map(format -> format.trim().toLowerCase(Locale.ROOT))
+                    .forEach(site.getImageFormats()::add);
+
+            saveSite(site);
+
+            sites.add(site);
+            siteByHost.put(name, site);
+            for (String alias : getProperties(environment, prefix + ".aliases")) {
+                siteByHost.putIfAbsent(alias.trim(), site);
+            }
 
             PathWatcher watcher = new PathWatcher(site.getContentDirectory());
+            watcher.setPool(getScanPool());
             watcherBySiteName.put(site.getName(), watcher);
 
             watcher.setHandler(new PathWatcher.AbstractWatchHandler() {
+                private ItemWriter writer;
+
+                /**
+                 * @return the writer of the scan in progress, created by the
+                 * first file visited while the site is busy
+                 */
+                private synchronized ItemWriter getWriter() {
+                    if (writer == null && site.isBusy()) {
+                        writer = createItemWriter(site);
+                    }
+
+                    return writer;
+                }
+
                 @Override
                 public void initialized() {
+                    ItemWriter scanWriter;
+                    synchronized (this) {
+                        scanWriter = writer;
+                        writer = null;
+                    }
+
+                    if (scanWriter != null) {
+                        scanWriter.close();
+                    }
+
+                    // rescans of an initialized site save and publish items one by one
+                    if (!site.isBusy()) {
+                        return;
+                    }
+
+                    itemService.deleteAllObsoleteItems(site);
+                    itemService.publishSnapshot(site);
                     site.setBusy(false);
                     saveSite(site);
-                    itemService.deleteAllObsoleteItems(site);
                 }
 
                 @Override
                 public void visited(Path path) {
                     if (Files.isRegularFile(path)) {
-                        reload(site, path);
+                        reload(site, path, getWriter());
+                        publishFileEvent(site, FileEvent.Origin.CONTENT, FileEvent.Kind.VISITED, path);
                     }
                 }
 
                 @Override
                 public void created(Path path) {
                     if (Files.isRegularFile(path)) {
-                        reload(site, path);
+                        reload(site, path, getWriter());
+                        publishFileEvent(site, FileEvent.Origin.CONTENT, FileEvent.Kind.CREATED, path);
                     }
                 }
 
                 @Override
                 public void modified(Path path) {
                     if (Files.isRegularFile(path)) {
-                        reload(site, path);
+                        reload(site, path, getWriter());
+                        publishFileEvent(site, FileEvent.Origin.CONTENT, FileEvent.Kind.MODIFIED, path);
                     }
                 }
 
@@ -227,12 +407,20 @@ public class SiteService {
                 public void deleted(Path path, boolean regularFile) {
                     if (regularFile) {
                         deleteItemByFile(site, path);
+                        publishFileEvent(site, FileEvent.Origin.CONTENT, FileEvent.Kind.DELETED, path);
                     }
                 }
             });
+
+            if (site.getThemeDirectory() != null && Files.isDirectory(site.getThemeDirectory())) {
+                themeWatcherBySiteName.put(site.getName(), createThemeWatcher(site));
+            }
         }
 
         deleteSitesNotIn(sites);
+
+        this.siteByHost = Collections.unmodifiableMap(siteByHost);
+        this.sites = Collections.unmodifiableList(sites);
     }
 
     @Async
@@ -0,0 +1,23 @@
+package info.anecdot.content;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published when the items loaded while a site was busy become visible at
+ * once. Items staged until then are announced by {@link ItemEvent}s as they
+ * are loaded, before they become visible.
+ *
+ * @author Stephan Grundner
+ */
+public class SnapshotEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    public Site getSite() {
+        return (Site) getSource();
+    }
+
+    public SnapshotEvent(Site site) {
+        super(site);
+    }
+}
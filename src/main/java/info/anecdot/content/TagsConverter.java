@@ -0,0 +1,34 @@
+package info.anecdot.content;
+
+import org.springframework.util.StringUtils;
+
+import javax.persistence.AttributeConverter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stores tags as a comma separated list.
+ *
+ * @author Stephan Grundner
+ */
+public class TagsConverter implements AttributeConverter<List<String>, String> {
+
+    @Override
+    public String convertToDatabaseColumn(List<String> tags) {
+        if (tags != null && !tags.isEmpty()) {
+            return StringUtils.collectionToCommaDelimitedString(tags);
+        }
+
+        return null;
+    }
+
+    @Override
+    public List<String> convertToEntityAttribute(String value) {
+        if (value != null && value.length() > 0) {
+            return Collections.unmodifiableList(Arrays.asList(StringUtils.commaDelimitedListToStringArray(value)));
+        }
+
+        return Collections.emptyList();
+    }
+}
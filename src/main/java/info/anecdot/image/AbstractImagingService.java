@@ -0,0 +1,231 @@
+package info.anecdot.image;
+
+import info.anecdot.content.Site;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.util.StringUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Base for imaging services, which keeps converted images in the
+ * {@link DerivativeStore}. Subclasses only implement the conversion itself.
+ * <p>
+ * Sites declaring image presets may restrict requested sizes to these: with
+ * the policy {@code snap} any other geometry is replaced by the closest
+ * preset, with {@code reject} it is refused. Sites listing image formats
+ * get derivatives in the first of these the client explicitly accepts.
+ * Only presets may enlarge images beyond the size of their source.
+ *
+ * @author Stephan Grundner
+ */
+public abstract class AbstractImagingService implements ImagingService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractImagingService.class);
+
+    @Autowired
+    private DerivativeStore derivativeStore;
+
+    /**
+     * Converts the source image into the target file, whose extension
+     * determines the output format.
+     *
+     * @param enlarge whether the image may end up larger than the source,
+     * which only presets may ask for
+     */
+    protected abstract void convert(Path source, Path target, Geometry geometry, boolean enlarge) throws IOException;
+
+    @Override
+    public boolean isImageRequest(HttpServletRequest request) {
+        return request.getParameter("size") != null;
+    }
+
+    private static Geometry parseOrNull(String size) {
+        try {
+            return Geometry.parse(size);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Geometry snap(Map<String, String> presets, Geometry requested) {
+        Geometry nearest = null;
+        long distance = Long.MAX_VALUE;
+
+        for (String value : presets.values()) {
+            Geometry preset = parseOrNull(value);
+            if (preset == null) {
+                LOG.warn("Ignoring invalid image preset {}", value);
+                continue;
+            }
+
+            long d = Math.abs(preset.getWidth() - requested.getWidth())
+                    + Math.abs(preset.getHeight() - requested.getHeight());
+            if (d < distance) {
+                nearest = preset;
+                distance = d;
+            }
+        }
+
+        return nearest;
+    }
+
+    /**
+     * @return the geometry to use for the requested size, or {@code null} if
+     * the size is not allowed
+     */
+    protected Geometry resolveGeometry(Site site, String size) {
+        Map<String, String> presets = site.getImagePresets();
+        if (presets.isEmpty()) {
+            return Geometry.parse(size);
+        }
+
+        String preset = presets.get(size);
+        if (preset != null) {
+            return Geometry.parse(preset);
+        }
+
+        String policy = site.getImageSizePolicy();
+        if ("any".equals(policy)) {
+            return Geometry.parse(size);
+        }
+
+        if ("reject".equals(policy)) {
+            return null;
+        }
+
+        Geometry requested = parseOrNull(size);
+        if (requested == null || requested.isPercent()) {
+            return null;
+        }
+
+        return snap(presets, requested);
+    }
+
+    /**
+     * @return whether the requested size resolves to one of the site's presets
+     */
+    protected boolean isPreset(Site site, String size) {
+        Map<String, String> presets = site.getImagePresets();
+        if (presets.isEmpty()) {
+            return false;
+        }
+
+        return presets.containsKey(size) || !"any".equals(site.getImageSizePolicy());
+    }
+
+    /**
+     * @return whether this service is able to write images in the given format
+     */
+    protected boolean canWrite(String format) {
+        return true;
+    }
+
+    protected static String normalizeFormat(String format) {
+        format = format.toLowerCase(Locale.ROOT);
+
+        return "jpeg".equals(format) ? "jpg" : format;
+    }
+
+    private static List<MediaType> getAcceptedMediaTypes(HttpServletRequest request) {
+        String accept = request.getHeader(HttpHeaders.ACCEPT);
+        if (!StringUtils.hasText(accept)) {
+            return Collections.emptyList();
+        }
+
+        try {
+            return MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Only media types named explicitly count, since browsers accept
+     * {@code image/*} or even {@code *}{@code /*} for formats they cannot show.
+     */
+    @Override
+    public String negotiateFormat(Site site, Path source, HttpServletRequest request) {
+        String sourceFormat = normalizeFormat(FilenameUtils.getExtension(source.toString()));
+
+        List<String> formats = site.getImageFormats();
+        if (formats.isEmpty()) {
+            return sourceFormat;
+        }
+
+        List<MediaType> accepted = getAcceptedMediaTypes(request);
+        for (String format : formats) {
+            format = normalizeFormat(format);
+            if (format.equals(sourceFormat)) {
+                return format;
+            }
+
+            MediaType mediaType = MediaTypeFactory.getMediaType("image." + format).orElse(null);
+            if (mediaType == null || !canWrite(format)) {
+                continue;
+            }
+
+            for (MediaType acceptedType : accepted) {
+                if (!acceptedType.isWildcardType() && !acceptedType.isWildcardSubtype()
+                        && acceptedType.getQualityValue() > 0
+                        && acceptedType.includes(mediaType)) {
+                    return format;
+                }
+            }
+        }
+
+        return sourceFormat;
+    }
+
+    @Override
+    public boolean isDerivable(Site site, String size, String format) {
+        return resolveGeometry(site, size) != null && canWrite(normalizeFormat(format));
+    }
+
+    private static String createKey(Path source, Geometry geometry, boolean enlarge, String extension,
+                                    Class<?> type) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        String transformation = type.getSimpleName() + ":" + geometry + (enlarge ? "" : ":fit") + ":" + extension;
+
+        return DerivativeStore.createKey(source, attributes, transformation);
+    }
+
+    @Override
+    public DerivativeStore.Lease findDerivative(Site site, Path source, String size, String format) throws IOException {
+        Geometry geometry = resolveGeometry(site, size);
+        String extension = normalizeFormat(format);
+        if (geometry == null || !canWrite(extension)) {
+            return null;
+        }
+
+        return derivativeStore.get(createKey(source, geometry, isPreset(site, size), extension, getClass()));
+    }
+
+    @Override
+    public DerivativeStore.Lease getDerivative(Site site, Path source, String size, String format) throws IOException {
+        Geometry geometry = resolveGeometry(site, size);
+        String extension = normalizeFormat(format);
+        if (geometry == null || !canWrite(extension)) {
+            return null;
+        }
+
+        boolean enlarge = isPreset(site, size);
+        String key = createKey(source, geometry, enlarge, extension, getClass());
+
+        return derivativeStore.getOrPut(key, extension, target -> convert(source, target, geometry, enlarge));
+    }
+}
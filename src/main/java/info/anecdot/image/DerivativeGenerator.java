@@ -0,0 +1,148 @@
+package info.anecdot.image;
+
+import info.anecdot.content.FileEvent;
+import info.anecdot.content.Item;
+import info.anecdot.content.ItemEvent;
+import info.anecdot.content.Site;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Produces the preset derivatives of images in the background, whenever an
+ * image file is created or modified and whenever an item referring to an
+ * image in its meta data is loaded. Requests for presets then find them
+ * already in the {@link DerivativeStore}.
+ *
+ * @author Stephan Grundner
+ */
+@Component
+public class DerivativeGenerator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DerivativeGenerator.class);
+
+    private static final Set<String> EXTENSIONS = new HashSet<>(Arrays.asList("jpg", "jpeg", "png", "gif", "bmp"));
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private Map<String, ImagingService> imagingServiceByName;
+
+    private ThreadPoolExecutor executor;
+
+    private static boolean isImage(Path path) {
+        return EXTENSIONS.contains(FilenameUtils.getExtension(path.toString()).toLowerCase(Locale.ROOT));
+    }
+
+    private void generate(Site site, Path source) {
+        ImagingService imagingService = imagingServiceByName.get(site.getImaging());
+        if (imagingService == null) {
+            return;
+        }
+
+        Set<String> formats = new LinkedHashSet<>();
+        formats.add(FilenameUtils.getExtension(source.toString()));
+        formats.addAll(site.getImageFormats());
+
+        for (String preset : site.getImagePresets().keySet()) {
+            for (String format : formats) {
+                try {
+                    DerivativeStore.Lease lease = imagingService.getDerivative(site, source, preset, format);
+                    if (lease != null) {
+                        lease.close();
+                    }
+                } catch (Exception e) {
+                    LOG.warn("Error generating " + preset + " of " + source + " as " + format, e);
+                }
+            }
+        }
+    }
+
+    public void submit(Site site, Path source) {
+        if (site.getImagePresets().isEmpty() || !isImage(source)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                if (Files.isRegularFile(source)) {
+                    generate(site, source);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Skipping derivatives of {}, generator queue full", source);
+        }
+    }
+
+    private static Path resolveImage(Site site, Item item) {
+        URI image = item.getImage();
+        if (image.isAbsolute() || image.getPath() == null || image.getPath().isEmpty()) {
+            return null;
+        }
+
+        Path directory = site.getContentDirectory().normalize();
+        String path = image.getPath();
+        if (!path.startsWith("/")) {
+            String uri = item.getUri().getPath();
+            path = uri.substring(0, uri.lastIndexOf('/') + 1) + path;
+        }
+
+        Path source = directory.resolve(path.substring(1)).normalize();
+
+        return source.startsWith(directory) ? source : null;
+    }
+
+    @EventListener
+    public void onFileEvent(FileEvent event) {
+        if (event.getOrigin() == FileEvent.Origin.CONTENT
+                && (event.getKind() == FileEvent.Kind.CREATED || event.getKind() == FileEvent.Kind.MODIFIED)) {
+            submit(event.getSite(), event.getPath());
+        }
+    }
+
+    @EventListener
+    public void onItemEvent(ItemEvent event) {
+        Item item = event.getItem();
+        if (event.getKind() == ItemEvent.Kind.LOADED && item.getImage() != null) {
+            Path source = resolveImage(event.getSite(), item);
+            if (source != null) {
+                submit(event.getSite(), source);
+            }
+        }
+    }
+
+    @PostConstruct
+    protected void init() {
+        int threads = environment.getProperty("anecdot.imaging.generator.threads", Integer.class, 2);
+        int capacity = environment.getProperty("anecdot.imaging.generator.queue-capacity", Integer.class, 1000);
+
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), runnable -> {
+            Thread thread = new Thread(runnable, "derivative-generator-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    protected void destroy() {
+        executor.shutdownNow();
+    }
+}
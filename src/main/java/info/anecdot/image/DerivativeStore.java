@@ -0,0 +1,381 @@
+package info.anecdot.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * Keeps converted images on disk across restarts.
+ * <p>
+ * Derivatives are addressed by a hash of the source file, its size and
+ * modification time and the normalized transformation, so a changed source
+ * simply stops being asked for and ages out. The store is bounded by
+ * {@code anecdot.imaging.store.max-size} bytes and evicts the least recently
+ * used derivatives first, but deletes them only once they are no longer
+ * {@link Lease leased}. Files are written to a temporary name and moved
+ * into place atomically under a name unique to them, which is never
+ * reused; leftovers of interrupted writes are removed on startup, when the
+ * index is rebuilt from the directory.
+ *
+ * @author Stephan Grundner
+ */
+@Component
+public class DerivativeStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DerivativeStore.class);
+
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    public interface Producer {
+
+        void produce(Path target) throws IOException;
+    }
+
+    private static final class Entry {
+
+        private final Path path;
+        private final long size;
+        private int leases;
+        private boolean evicted;
+
+        private Entry(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A derivative in use. It is not deleted before the lease is closed, even
+     * if it is evicted meanwhile.
+     */
+    public final class Lease implements Closeable {
+
+        private final Entry entry;
+        private final Path path;
+        private final long size;
+        private boolean closed;
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void close() {
+            synchronized (DerivativeStore.this) {
+                if (closed) {
+                    return;
+                }
+
+                closed = true;
+                if (entry != null && (--entry.leases > 0 || !entry.evicted)) {
+                    return;
+                }
+            }
+
+            delete(path);
+        }
+
+        private Lease(Entry entry, Path path, long size) {
+            this.entry = entry;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    @Autowired
+    private Environment environment;
+
+    private Path directory;
+    private long maxSize;
+
+    private Duration waitTimeout;
+
+    private final LinkedHashMap<String, Entry> entryByKey = new LinkedHashMap<>(1024, 0.75f, true);
+    private long size;
+
+    private final ConcurrentMap<String, CompletableFuture<Void>> pendingByKey = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the key of a derivative.
+     *
+     * @param transformation the normalized transformation, including the
+     *                       output format and anything else the result depends on
+     */
+    public static String createKey(Path source, BasicFileAttributes attributes, String transformation) {
+        String value = source.toAbsolutePath().normalize() + "|"
+                + attributes.size() + "|"
+                + attributes.lastModifiedTime().toMillis() + "|"
+                + transformation;
+
+        return DigestUtils.md5DigestAsHex(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String keyOf(Path file) {
+        String fileName = file.getFileName().toString();
+        int i = fileName.indexOf('.');
+
+        return i < 0 ? fileName : fileName.substring(0, i);
+    }
+
+    private Path directoryOf(String key) {
+        return directory.resolve(key.substring(0, 2));
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Error deleting derivative " + path, e);
+        }
+    }
+
+    /**
+     * Registers a derivative, replacing any previous one of the same key,
+     * whose file is added to the given list if it can be deleted right away.
+     */
+    private synchronized Entry register(String key, Path path, long length, List<Path> obsolete) {
+        Entry entry = new Entry(path, length);
+        Entry previous = entryByKey.put(key, entry);
+        if (previous != null) {
+            size -= previous.size;
+            previous.evicted = true;
+            if (previous.leases == 0) {
+                obsolete.add(previous.path);
+            }
+        }
+
+        size += length;
+
+        return entry;
+    }
+
+    private synchronized Lease lease(Entry entry) {
+        entry.leases++;
+
+        return new Lease(entry, entry.path, entry.size);
+    }
+
+    /**
+     * Evicts the least recently used derivatives beyond the maximum size;
+     * those still leased are deleted once their last lease is closed.
+     */
+    private void evict() {
+        List<Path> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> entries = entryByKey.values().iterator();
+            while (size > maxSize && entries.hasNext()) {
+                Entry entry = entries.next();
+                entries.remove();
+                size -= entry.size;
+                entry.evicted = true;
+                if (entry.leases == 0) {
+                    evicted.add(entry.path);
+                }
+            }
+        }
+
+        evicted.forEach(DerivativeStore::delete);
+    }
+
+    /**
+     * @return a lease on the stored derivative, which the caller must close,
+     * or {@code null} if there is none
+     */
+    public Lease get(String key) {
+        Lease lease;
+        synchronized (this) {
+            Entry entry = entryByKey.get(key);
+            if (entry == null) {
+                return null;
+            }
+
+            lease = lease(entry);
+        }
+
+        if (!Files.exists(lease.getPath())) {
+            synchronized (this) {
+                if (entryByKey.remove(key, lease.entry)) {
+                    size -= lease.entry.size;
+                }
+            }
+
+            lease.close();
+
+            return null;
+        }
+
+        return lease;
+    }
+
+    /**
+     * Lets the producer write a derivative to a temporary file with the given
+     * extension and moves the result into the store, under a name of its own
+     * so that no file is ever replaced while it is leased. A derivative larger
+     * than the whole store is not stored; the returned lease then deletes it
+     * when closed.
+     *
+     * @return a lease on the derivative, which the caller must close
+     */
+    public Lease put(String key, String extension, Producer producer) throws IOException {
+        Path parent = directoryOf(key);
+        Files.createDirectories(parent);
+
+        Path temp = Files.createTempFile(parent, TEMP_PREFIX, "." + extension);
+        List<Path> obsolete = new ArrayList<>(1);
+        Lease lease;
+        try {
+            producer.produce(temp);
+
+            long length = Files.size(temp);
+            if (length > maxSize) {
+                LOG.info("Not storing derivative {} of {} bytes, exceeding the store", key, length);
+
+                lease = new Lease(null, temp, length);
+                temp = null;
+
+                return lease;
+            }
+
+            Path path = parent.resolve(key + "." + temp.getFileName().toString().substring(TEMP_PREFIX.length()));
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            lease = lease(register(key, path, length, obsolete));
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        obsolete.forEach(DerivativeStore::delete);
+        evict();
+
+        return lease;
+    }
+
+    /**
+     * Returns the stored derivative or produces it. Concurrent calls for the
+     * same key share a single production; callers other than the producing
+     * one wait up to {@code anecdot.imaging.store.wait-timeout} for it.
+     *
+     * @return a lease on the derivative, which the caller must close
+     */
+    public Lease getOrPut(String key, String extension, Producer producer) throws IOException {
+        Lease lease = get(key);
+        if (lease != null) {
+            return lease;
+        }
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> pending = pendingByKey.putIfAbsent(key, future);
+        if (pending != null) {
+            await(key, pending);
+
+            lease = get(key);
+
+            return lease != null ? lease : put(key, extension, producer);
+        }
+
+        try {
+            lease = get(key);
+            if (lease == null) {
+                lease = put(key, extension, producer);
+            }
+
+            future.complete(null);
+
+            return lease;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingByKey.remove(key, future);
+        }
+    }
+
+    private void await(String key, CompletableFuture<Void> pending) throws IOException {
+        try {
+            pending.get(waitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for derivative " + key, e);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for derivative " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void rebuild() throws IOException {
+        class StoredFile {
+            private final Path path;
+            private final BasicFileAttributes attributes;
+
+            private StoredFile(Path path, BasicFileAttributes attributes) {
+                this.path = path;
+                this.attributes = attributes;
+            }
+        }
+
+        List<StoredFile> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    continue;
+                }
+
+                if (path.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    Files.deleteIfExists(path);
+                } else {
+                    files.add(new StoredFile(path, attributes));
+                }
+            }
+        }
+
+        files.sort(Comparator.comparing(file -> file.attributes.lastModifiedTime()));
+        List<Path> obsolete = new ArrayList<>();
+        for (StoredFile file : files) {
+            register(keyOf(file.path), file.path, file.attributes.size(), obsolete);
+        }
+
+        obsolete.forEach(DerivativeStore::delete);
+
+        evict();
+
+        LOG.info("Derivative store {} holds {} files, {} bytes", directory, entryByKey.size(), size);
+    }
+
+    @PostConstruct
+    protected void init() throws IOException {
+        directory = Paths.get(environment.getProperty("anecdot.imaging.store.directory",
+                Paths.get(System.getProperty("java.io.tmpdir"), "anecdot", "derivatives").toString()));
+        maxSize = environment.getProperty("anecdot.imaging.store.max-size", Long.class, 1024L * 1024 * 1024);
+        waitTimeout = environment.getProperty("anecdot.imaging.store.wait-timeout", Duration.class, Duration.ofSeconds(30));
+
+        Files.createDirectories(directory);
+        rebuild();
+    }
+}
@@ -0,0 +1,183 @@
+package info.anecdot.image;
+
+import java.awt.Dimension;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A GraphicsMagick style geometry as passed in the {@code size} parameter:
+ * {@code W}, {@code xH} or {@code WxH}, optionally in percent, followed by
+ * one of the flags {@code !} (exact), {@code >} (only shrink),
+ * {@code <} (only enlarge) or {@code ^} (fill).
+ *
+ * @author Stephan Grundner
+ */
+public final class Geometry {
+
+    public static final int MAX_DIMENSION = 10000;
+
+    private static final Pattern PATTERN = Pattern.compile("^(\\d{1,5})?(?:x(\\d{1,5}))?(%)?([!<>^])?$");
+
+    private final int width;
+    private final int height;
+    private final boolean percent;
+    private final char flag;
+
+    public static Geometry parse(String geometry) {
+        Matcher matcher = PATTERN.matcher(geometry != null ? geometry.trim() : "");
+        if (!matcher.matches() || (matcher.group(1) == null && matcher.group(2) == null)) {
+            throw new IllegalArgumentException("Invalid geometry " + geometry);
+        }
+
+        int width = matcher.group(1) != null ? Integer.parseInt(matcher.group(1)) : 0;
+        int height = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 0;
+        boolean percent = matcher.group(3) != null;
+        char flag = matcher.group(4) != null ? matcher.group(4).charAt(0) : 0;
+
+        if (width > MAX_DIMENSION || height > MAX_DIMENSION || (percent && Math.max(width, height) > 1000)) {
+            throw new IllegalArgumentException("Geometry out of range " + geometry);
+        }
+
+        return new Geometry(width, height, percent, flag);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isPercent() {
+        return percent;
+    }
+
+    /**
+     * @return the flag, or {@code 0} if there is none
+     */
+    public char getFlag() {
+        return flag;
+    }
+
+    private static int round(double value) {
+        return Math.max(1, (int) Math.round(value));
+    }
+
+    private Dimension scale(int width, int height, boolean fill) {
+        double scaleX = this.width > 0 ? (double) this.width / width : Double.NaN;
+        double scaleY = this.height > 0 ? (double) this.height / height : Double.NaN;
+
+        double scale;
+        if (Double.isNaN(scaleX)) {
+            scale = scaleY;
+        } else if (Double.isNaN(scaleY)) {
+            scale = scaleX;
+        } else {
+            scale = fill ? Math.max(scaleX, scaleY) : Math.min(scaleX, scaleY);
+        }
+
+        return new Dimension(round(width * scale), round(height * scale));
+    }
+
+    /**
+     * Computes the size an image of the given size is to be resized to.
+     */
+    public Dimension apply(int width, int height) {
+        if (percent) {
+            int percentX = this.width > 0 ? this.width : this.height;
+            int percentY = this.height > 0 ? this.height : this.width;
+
+            return new Dimension(round(width * percentX / 100.0), round(height * percentY / 100.0));
+        }
+
+        switch (flag) {
+            case '!':
+                if (this.width > 0 && this.height > 0) {
+                    return new Dimension(this.width, this.height);
+                }
+
+                return scale(width, height, false);
+            case '>':
+                if ((this.width > 0 && width > this.width) || (this.height > 0 && height > this.height)) {
+                    return scale(width, height, false);
+                }
+
+                return new Dimension(width, height);
+            case '<':
+                if ((this.width == 0 || width < this.width) && (this.height == 0 || height < this.height)) {
+                    return scale(width, height, false);
+                }
+
+                return new Dimension(width, height);
+            case '^':
+                return scale(width, height, true);
+            default:
+                return scale(width, height, false);
+        }
+    }
+
+    /**
+     * Computes the size like {@link #apply(int, int)}, but unless enlarging is
+     * allowed, shrinks a result larger than the source to fit into it,
+     * keeping its aspect ratio.
+     */
+    public Dimension apply(int width, int height, boolean enlarge) {
+        Dimension size = apply(width, height);
+        if (enlarge || (size.width <= width && size.height <= height)) {
+            return size;
+        }
+
+        double scale = Math.min((double) width / size.width, (double) height / size.height);
+
+        return new Dimension(round(size.width * scale), round(size.height * scale));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Geometry geometry = (Geometry) o;
+        return width == geometry.width &&
+                height == geometry.height &&
+                percent == geometry.percent &&
+                flag == geometry.flag;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((width * 31 + height) * 31 + (percent ? 1 : 0)) * 31 + flag;
+    }
+
+    /**
+     * @return the normalized geometry, as understood by GraphicsMagick
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        if (width > 0) {
+            builder.append(width);
+        }
+
+        if (height > 0) {
+            builder.append('x').append(height);
+        }
+
+        if (percent) {
+            builder.append('%');
+        }
+
+        if (flag != 0) {
+            builder.append(flag);
+        }
+
+        return builder.toString();
+    }
+
+    private Geometry(int width, int height, boolean percent, char flag) {
+        this.width = width;
+        this.height = height;
+        this.percent = percent;
+        this.flag = flag;
+    }
+}
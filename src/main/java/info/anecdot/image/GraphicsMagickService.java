@@ -1,102 +1,45 @@
 package info.anecdot.image;
 
-import org.apache.commons.io.FilenameUtils;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.Cache;
-import org.springframework.cache.CacheManager;
-import org.springframework.context.ApplicationContext;
-import org.springframework.context.annotation.Primary;
-import org.springframework.core.io.FileUrlResource;
-import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 
-import javax.servlet.http.HttpServletRequest;
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.UUID;
 
 /**
+ * Converts images by running {@code gm convert}.
+ *
  * @author Stephan Grundner
  */
-@Service
-@Primary
-public class GraphicsMagickService implements ImagingService {
+@Service(GraphicsMagickService.NAME)
+public class GraphicsMagickService extends AbstractImagingService {
 
-    private class Conversion {
-
-        private long lastModified;
-        private File file;
-
-        public long getLastModified() {
-            return lastModified;
-        }
-
-        public void setLastModified(long lastModified) {
-            this.lastModified = lastModified;
-        }
-
-        public File getFile() {
-            return file;
-        }
-
-        public void setFile(File file) {
-            this.file = file;
-        }
-    }
-
-    @Autowired
-    private ApplicationContext applicationContext;
-
-    @Autowired
-    private CacheManager cacheManager;
-
-    @Override
-    public boolean isImageRequest(HttpServletRequest request) {
-        return request.getParameter("size") != null;
-    }
+    public static final String NAME = "graphicsmagick";
 
     @Override
-    public Resource resolveImageResource(String location, HttpServletRequest request) throws IOException {
-        Cache cache = cacheManager.getCache("images");
-        String url = request.getRequestURL()
-                .append('?')
-                .append(request.getQueryString())
-                .toString();
-        Conversion conversion = cache.get(url, Conversion.class);
-        Resource original = applicationContext.getResource(location);
-        if (conversion == null || original.lastModified() > conversion.lastModified) {
-            String nameWithoutExtension = FilenameUtils.getBaseName(location);
-            String extension = FilenameUtils.getExtension(location);
-            String size = request.getParameter("size");
-            File temp = File.createTempFile(nameWithoutExtension + size, "." + extension);
-            temp.deleteOnExit();
-
-            try {
-                Process process = new ProcessBuilder()
-                        .command(Arrays.asList(
-                                "gm", "convert",
-                                "-size", size,
-                                original.getFile().getAbsolutePath(),
-                                "-resize", size,
-                                temp.getAbsolutePath()))
-                        .redirectErrorStream(true)
-                        .start();
+    protected void convert(Path source, Path target, Geometry geometry, boolean enlarge) throws IOException {
+        String size = geometry.toString();
+        if (!enlarge && geometry.getFlag() == 0) {
+            size += ">";
+        }
 
-                process.waitFor();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+        try {
+            Process process = new ProcessBuilder()
+                    .command(Arrays.asList(
+                            "gm", "convert",
+                            "-size", size,
+                            source.toAbsolutePath().toString(),
+                            "-resize", size,
+                            target.toAbsolutePath().toString()))
+                    .redirectErrorStream(true)
+                    .start();
+
+            int exitValue = process.waitFor();
+            if (exitValue != 0) {
+                throw new IOException("gm convert exited with " + exitValue + " for " + source);
             }
-
-            conversion = new Conversion();
-            conversion.setFile(temp);
-            conversion.setLastModified(original.lastModified());
-            cache.put(url, conversion);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
         }
-
-        return new FileUrlResource(conversion.file.getAbsolutePath());
     }
 }
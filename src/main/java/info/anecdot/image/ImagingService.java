@@ -1,9 +1,10 @@
 package info.anecdot.image;
 
-import org.springframework.core.io.Resource;
+import info.anecdot.content.Site;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.nio.file.Path;
 
 /**
  * @author Stephan Grundner
@@ -12,5 +13,38 @@ public interface ImagingService {
 
     boolean isImageRequest(HttpServletRequest request);
 
-    Resource resolveImageResource(String location, HttpServletRequest request) throws IOException;
+    /**
+     * Picks the format to send an image in, from the formats the site allows
+     * and the request accepts, falling back to the format of the source.
+     *
+     * @return a format, as a file extension
+     */
+    String negotiateFormat(Site site, Path source, HttpServletRequest request);
+
+    /**
+     * @return whether a derivative of the given size, which is either the name
+     * of one of the site's presets or a geometry, and format may be produced
+     * for the site
+     */
+    boolean isDerivable(Site site, String size, String format);
+
+    /**
+     * Returns the derivative of a source image in the given size, which is
+     * either the name of one of the site's presets or a geometry, and format,
+     * producing it if necessary.
+     *
+     * @return a lease on the derivative, which the caller must close, or
+     * {@code null} if the size is not allowed for the site or the format
+     * cannot be written
+     */
+    DerivativeStore.Lease getDerivative(Site site, Path source, String size, String format) throws IOException;
+
+    /**
+     * Returns the derivative of a source image in the given size and format
+     * if it has already been produced, without converting anything.
+     *
+     * @return a lease on the derivative, which the caller must close, or
+     * {@code null} if it is not stored
+     */
+    DerivativeStore.Lease findDerivative(Site site, Path source, String size, String format) throws IOException;
 }
@@ -5,11 +5,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
 import java.time.Duration;
-import java.util.LinkedHashSet;
-import java.util.Optional;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -59,6 +62,45 @@ public class PathWatcher implements Closeable, AutoCloseable {
 
     private WatchHandler handler;
 
+    private ForkJoinPool pool;
+
+    private class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final Queue<WatchKey> scanned;
+
+        @Override
+        protected void compute() {
+            LOG.info("Begin observing {}", directory);
+
+            visit(directory);
+
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+                for (Path path : paths) {
+                    if (Files.isDirectory(path)) {
+                        tasks.add(new ScanTask(path, scanned));
+                    } else if (Files.isRegularFile(path)) {
+                        tasks.add(ForkJoinTask.adapt(() -> visit(path)));
+                    }
+                }
+
+                scanned.add(watchKey(directory));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            invokeAll(tasks);
+        }
+
+        private ScanTask(Path directory, Queue<WatchKey> scanned) {
+            this.directory = directory;
+            this.scanned = scanned;
+        }
+    }
+
     public boolean isClosed() {
         return closed;
     }
@@ -75,29 +117,48 @@ public class PathWatcher implements Closeable, AutoCloseable {
         this.handler = handler;
     }
 
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * When set, the initial scan fans out over the given pool and
+     * {@link WatchHandler#visited(Path)} is called concurrently.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private void visit(Path path) {
+        Optional.ofNullable(handler)
+                .ifPresent(handler -> handler.visited(path));
+    }
+
+    private WatchKey watchKey(Path directory) throws IOException {
+        return directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.OVERFLOW);
+    }
+
     private void register(Path directory) {
         WatchKey key;
 
         try {
             LOG.info("Begin observing {}", directory);
 
-            Optional.ofNullable(handler)
-                    .ifPresent(handler -> handler.visited(directory));
+            visit(directory);
 
             Files.list(directory)
                     .filter(Files::isRegularFile)
-                    .forEach(path -> Optional.ofNullable(handler)
-                            .ifPresent(handler -> handler.visited(path)));
+                    .forEach(this::visit);
 
             Files.list(directory)
                     .filter(Files::isDirectory)
                     .forEach(this::register);
 
-            key = directory.register(watchService,
-                    StandardWatchEventKinds.ENTRY_CREATE,
-                    StandardWatchEventKinds.ENTRY_MODIFY,
-                    StandardWatchEventKinds.ENTRY_DELETE,
-                    StandardWatchEventKinds.OVERFLOW);
+            key = watchKey(directory);
 
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -106,6 +167,23 @@ public class PathWatcher implements Closeable, AutoCloseable {
         keys.add(key);
     }
 
+    private void scan(Path directory) {
+        if (pool == null) {
+            register(directory);
+
+            return;
+        }
+
+        Queue<WatchKey> scanned = new ConcurrentLinkedQueue<>();
+        try {
+            pool.invoke(new ScanTask(directory, scanned));
+        } catch (UncheckedIOException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            keys.addAll(scanned);
+        }
+    }
+
     private boolean removeKeys(Path directory) {
         return keys.removeIf(it -> {
             if (((Path) it.watchable()).startsWith(directory)) {
@@ -177,7 +255,7 @@ public class PathWatcher implements Closeable, AutoCloseable {
 
     public void watch(Duration wait) throws InterruptedException {
         if (keys.isEmpty()) {
-            register(directory);
+            scan(directory);
             Optional.ofNullable(handler)
                     .ifPresent(WatchHandler::initialized);
         }
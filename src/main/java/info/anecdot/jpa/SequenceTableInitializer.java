@@ -0,0 +1,109 @@
+package info.anecdot.jpa;
+
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prepares the tables with which Hibernate emulates the id sequences of
+ * entities on databases without sequences, such as MySQL.
+ * <p>
+ * Entities used to take their ids from identity columns. Each sequence table
+ * is therefore created if missing and its next value is raised above the
+ * highest id already taken, plus one allocation, before anything is
+ * inserted; otherwise new ids would collide with those of existing rows.
+ *
+ * @author Stephan Grundner
+ */
+@Component
+public class SequenceTableInitializer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SequenceTableInitializer.class);
+
+    private static final int ALLOCATION_SIZE = 100;
+
+    /**
+     * Sequence tables by the table of the entity taking its ids from them.
+     */
+    private static final Map<String, String> SEQUENCE_BY_TABLE = new LinkedHashMap<>();
+
+    static {
+        SEQUENCE_BY_TABLE.put("knot", "knot_seq");
+        SEQUENCE_BY_TABLE.put("sequence", "sequence_seq");
+        SEQUENCE_BY_TABLE.put("visitor", "visitor_seq");
+        SEQUENCE_BY_TABLE.put("track", "track_seq");
+    }
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private DataSource dataSource;
+
+    private static boolean tableExists(DatabaseMetaData metaData, String table) throws SQLException {
+        for (String name : new String[] {table, table.toUpperCase()}) {
+            try (ResultSet tables = metaData.getTables(null, null, name, new String[] {"TABLE"})) {
+                if (tables.next()) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private void initialize(JdbcTemplate jdbcTemplate, DatabaseMetaData metaData, Dialect dialect,
+                            String table, String sequence) throws SQLException {
+        jdbcTemplate.execute("create table if not exists " + sequence + " (next_val bigint)");
+
+        Long rows = jdbcTemplate.queryForObject("select count(*) from " + sequence, Long.class);
+        if (rows == null || rows == 0) {
+            jdbcTemplate.update("insert into " + sequence + " (next_val) values (1)");
+        }
+
+        if (!tableExists(metaData, table)) {
+            return;
+        }
+
+        String quotedTable = dialect.openQuote() + table + dialect.closeQuote();
+        Long next = jdbcTemplate.queryForObject("select coalesce(max(id), 0) + ? from " + quotedTable,
+                Long.class, ALLOCATION_SIZE + 1);
+        int updated = jdbcTemplate.update("update " + sequence + " set next_val = ? where next_val < ?", next, next);
+        if (updated > 0) {
+            LOG.info("Raised {} to {} above the ids of {}", sequence, next, table);
+        }
+    }
+
+    @PostConstruct
+    protected void init() {
+        Dialect dialect = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getJdbcServices().getDialect();
+        if (dialect.supportsSequences()) {
+            return;
+        }
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        try (Connection connection = dataSource.getConnection()) {
+            DatabaseMetaData metaData = connection.getMetaData();
+            for (Map.Entry<String, String> entry : SEQUENCE_BY_TABLE.entrySet()) {
+                initialize(jdbcTemplate, metaData, dialect, entry.getKey(), entry.getValue());
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package info.anecdot.search;
+
+import info.anecdot.content.*;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Full-text search over the items of each site, backed by a Lucene index
+ * per site on local disk.
+ * <p>
+ * Items are indexed on a background thread as they are loaded or deleted;
+ * items whose modification time matches the indexed one are skipped, so
+ * rescanning a site does not rewrite its index. Searchers are refreshed
+ * every {@code anecdot.search.refresh-interval} and changes are committed
+ * every {@code anecdot.search.commit-interval}. Hits are resolved against
+ * the item snapshot, never the database; hits missing from it are skipped
+ * without taking up places of the requested page, and their documents are
+ * removed whenever a snapshot is published.
+ *
+ * @author Stephan Grundner
+ */
+@Service
+public class SearchService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchService.class);
+
+    private static final String URI_FIELD = "uri";
+    private static final String STAMP_FIELD = "stamp";
+    private static final String TYPE_FIELD = "type";
+    private static final String TITLE_FIELD = "title";
+    private static final String DESCRIPTION_FIELD = "description";
+    private static final String CONTENT_FIELD = "content";
+
+    private static final Map<String, Float> BOOSTS;
+
+    static {
+        Map<String, Float> boosts = new HashMap<>();
+        boosts.put(TITLE_FIELD, 3f);
+        boosts.put(DESCRIPTION_FIELD, 2f);
+        boosts.put(CONTENT_FIELD, 1f);
+        BOOSTS = Collections.unmodifiableMap(boosts);
+    }
+
+    private static final class SiteIndex {
+
+        private final IndexWriter writer;
+        private final SearcherManager searcherManager;
+        private final Map<String, Long> stampByUri;
+
+        private SiteIndex(IndexWriter writer, SearcherManager searcherManager, Map<String, Long> stampByUri) {
+            this.writer = writer;
+            this.searcherManager = searcherManager;
+            this.stampByUri = stampByUri;
+        }
+    }
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private ItemService itemService;
+
+    private Path directory;
+    private final Analyzer analyzer = new StandardAnalyzer();
+
+    private final Map<String, SiteIndex> indexBySiteName = new ConcurrentHashMap<>();
+
+    private ExecutorService indexer;
+    private ScheduledExecutorService scheduler;
+
+    private static Map<String, Long> readStamps(IndexWriter writer) throws IOException {
+        Map<String, Long> stampByUri = new HashMap<>();
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            Set<String> fields = new HashSet<>(Arrays.asList(URI_FIELD, STAMP_FIELD));
+            for (LeafReaderContext context : reader.leaves()) {
+                LeafReader leaf = context.reader();
+                for (int i = 0; i < leaf.maxDoc(); i++) {
+                    if (leaf.getLiveDocs() != null && !leaf.getLiveDocs().get(i)) {
+                        continue;
+                    }
+
+                    Document document = leaf.document(i, fields);
+                    IndexableField stamp = document.getField(STAMP_FIELD);
+                    stampByUri.put(document.get(URI_FIELD), stamp != null ? stamp.numericValue().longValue() : 0L);
+                }
+            }
+        }
+
+        return stampByUri;
+    }
+
+    private SiteIndex openIndex(String siteName) {
+        try {
+            FSDirectory fsDirectory = FSDirectory.open(directory.resolve(siteName));
+            IndexWriterConfig config = new IndexWriterConfig(analyzer)
+                    .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+            IndexWriter writer = new IndexWriter(fsDirectory, config);
+            SearcherManager searcherManager = new SearcherManager(writer, null);
+
+            return new SiteIndex(writer, searcherManager, new ConcurrentHashMap<>(readStamps(writer)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private SiteIndex getIndex(Site site) {
+        return indexBySiteName.computeIfAbsent(site.getName(), this::openIndex);
+    }
+
+    private static void collectText(Knot knot, StringBuilder text) {
+        if (StringUtils.hasText(knot.getValue())) {
+            text.append(knot.getValue()).append('\n');
+        }
+
+        for (Sequence sequence : knot.getSequences()) {
+            for (Knot child : sequence.getKnots()) {
+                collectText(child, text);
+            }
+        }
+    }
+
+    private static String firstValue(Knot knot, String name) {
+        Sequence sequence = knot.getSequence(name);
+        if (sequence == null || sequence.getKnots().isEmpty()) {
+            return null;
+        }
+
+        return sequence.getKnots().get(0).getValue();
+    }
+
+    private static long stampOf(Item item) {
+        return item.getLastModified() != null
+                ? item.getLastModified().toInstant(ZoneOffset.UTC).toEpochMilli()
+                : 0L;
+    }
+
+    private static Document toDocument(Item item, long stamp) {
+        Document document = new Document();
+        document.add(new StringField(URI_FIELD, item.getUri().toString(), Field.Store.YES));
+        document.add(new StoredField(STAMP_FIELD, stamp));
+
+        if (item.getType() != null) {
+            document.add(new StringField(TYPE_FIELD, item.getType(), Field.Store.NO));
+        }
+
+        String title = firstValue(item, TITLE_FIELD);
+        if (title != null) {
+            document.add(new TextField(TITLE_FIELD, title, Field.Store.NO));
+        }
+
+        if (item.getDescription() != null) {
+            document.add(new TextField(DESCRIPTION_FIELD, item.getDescription(), Field.Store.NO));
+        }
+
+        StringBuilder text = new StringBuilder();
+        collectText(item, text);
+        document.add(new TextField(CONTENT_FIELD, text.toString(), Field.Store.NO));
+
+        return document;
+    }
+
+    private void index(Site site, Item item) {
+        SiteIndex index = getIndex(site);
+        String uri = item.getUri().toString();
+        long stamp = stampOf(item);
+        if (Objects.equals(index.stampByUri.get(uri), stamp)) {
+            return;
+        }
+
+        try {
+            index.writer.updateDocument(new Term(URI_FIELD, uri), toDocument(item, stamp));
+            index.stampByUri.put(uri, stamp);
+        } catch (IOException e) {
+            LOG.warn("Error indexing " + uri + " of site " + site.getName(), e);
+        }
+    }
+
+    private void delete(Site site, URI uri) {
+        SiteIndex index = getIndex(site);
+        try {
+            index.writer.deleteDocuments(new Term(URI_FIELD, uri.toString()));
+            index.stampByUri.remove(uri.toString());
+        } catch (IOException e) {
+            LOG.warn("Error removing " + uri + " of site " + site.getName() + " from index", e);
+        }
+    }
+
+    @EventListener
+    public void onItemEvent(ItemEvent event) {
+        Site site = event.getSite();
+        Item item = event.getItem();
+        try {
+            if (event.getKind() == ItemEvent.Kind.LOADED) {
+                indexer.execute(() -> index(site, item));
+            } else {
+                indexer.execute(() -> delete(site, event.getUri()));
+            }
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Not indexing {}, search service stopped", event.getUri());
+        }
+    }
+
+    /**
+     * Deletes the documents of items missing from the site's snapshot, such
+     * as items deleted while the index was closed.
+     */
+    private void prune(Site site) {
+        SiteIndex index = getIndex(site);
+        ItemSnapshot snapshot = itemService.getSnapshot(site);
+        int count = 0;
+        for (String uri : index.stampByUri.keySet()) {
+            if (snapshot.getItem(URI.create(uri)) == null) {
+                delete(site, URI.create(uri));
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            LOG.info("Removed {} stale documents from search index of site {}", count, site.getName());
+        }
+    }
+
+    @EventListener
+    public void onSnapshotEvent(SnapshotEvent event) {
+        Site site = event.getSite();
+        try {
+            indexer.execute(() -> prune(site));
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Not pruning search index of site {}, search service stopped", site.getName());
+        }
+    }
+
+    private Query parse(String query) {
+        MultiFieldQueryParser parser = new MultiFieldQueryParser(
+                new String[] {TITLE_FIELD, DESCRIPTION_FIELD, CONTENT_FIELD}, analyzer, BOOSTS);
+        try {
+            return parser.parse(query);
+        } catch (ParseException e) {
+            try {
+                return parser.parse(QueryParser.escape(query));
+            } catch (ParseException e2) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the items matching the query, best matches first
+     */
+    public List<Item> search(Site site, String query, int limit, int offset) {
+        if (!StringUtils.hasText(query) || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        Query parsed = parse(query);
+        if (parsed == null) {
+            return Collections.emptyList();
+        }
+
+        SiteIndex index = getIndex(site);
+        ItemSnapshot snapshot = itemService.getSnapshot(site);
+        try {
+            IndexSearcher searcher = index.searcherManager.acquire();
+            try {
+                Set<String> fields = Collections.singleton(URI_FIELD);
+                int batchSize = offset + limit;
+
+                List<Item> items = new ArrayList<>(limit);
+                int skipped = 0;
+                ScoreDoc after = null;
+                while (true) {
+                    ScoreDoc[] scoreDocs = searcher.searchAfter(after, parsed, batchSize).scoreDocs;
+                    for (ScoreDoc scoreDoc : scoreDocs) {
+                        String uri = searcher.doc(scoreDoc.doc, fields).get(URI_FIELD);
+                        Item item = snapshot.getItem(URI.create(uri));
+                        if (item == null) {
+                            continue;
+                        }
+
+                        if (skipped < offset) {
+                            skipped++;
+                        } else if (items.add(item) && items.size() == limit) {
+                            return items;
+                        }
+                    }
+
+                    if (scoreDocs.length < batchSize) {
+                        return items;
+                    }
+
+                    after = scoreDocs[scoreDocs.length - 1];
+                }
+            } finally {
+                index.searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void refresh() {
+        for (Map.Entry<String, SiteIndex> entry : indexBySiteName.entrySet()) {
+            try {
+                entry.getValue().searcherManager.maybeRefresh();
+            } catch (IOException e) {
+                LOG.warn("Error refreshing search index of site " + entry.getKey(), e);
+            }
+        }
+    }
+
+    private void commit() {
+        for (Map.Entry<String, SiteIndex> entry : indexBySiteName.entrySet()) {
+            IndexWriter writer = entry.getValue().writer;
+            try {
+                if (writer.hasUncommittedChanges()) {
+                    writer.commit();
+                }
+            } catch (IOException e) {
+                LOG.warn("Error committing search index of site " + entry.getKey(), e);
+            }
+        }
+    }
+
+    @PostConstruct
+    protected void init() {
+        directory = Paths.get(environment.getProperty("anecdot.search.directory",
+                Paths.get(System.getProperty("java.io.tmpdir"), "anecdot", "search").toString()));
+        Duration refreshInterval = environment.getProperty("anecdot.search.refresh-interval",
+                Duration.class, Duration.ofSeconds(1));
+        Duration commitInterval = environment.getProperty("anecdot.search.commit-interval",
+                Duration.class, Duration.ofMinutes(1));
+
+        indexer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "search-indexer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+
+            return thread;
+        });
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "search-refresher");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh,
+                refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::commit,
+                commitInterval.toMillis(), commitInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    protected void destroy() throws InterruptedException {
+        indexer.shutdown();
+        indexer.awaitTermination(10, TimeUnit.SECONDS);
+        scheduler.shutdownNow();
+
+        for (Map.Entry<String, SiteIndex> entry : indexBySiteName.entrySet()) {
+            try {
+                entry.getValue().searcherManager.close();
+                entry.getValue().writer.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing search index of site " + entry.getKey(), e);
+            }
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package info.anecdot.security;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import info.anecdot.settings.Settings;
+import info.anecdot.settings.SettingsEvent;
 import info.anecdot.settings.SettingsService;
 import org.keycloak.KeycloakPrincipal;
 import org.keycloak.KeycloakSecurityContext;
 import org.keycloak.adapters.springsecurity.token.KeycloakAuthenticationToken;
 import org.keycloak.representations.AccessToken;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -15,18 +21,81 @@ import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.util.UrlPathHelper;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Decides whether the current principal may access a path, following the
+ * permissions of all settings on the way from the root to the path.
+ * <p>
+ * The {@link SettingsService#getEffectiveSettings(String) effective
+ * permissions} of a directory are compiled when first needed. Decisions are
+ * kept per path and per user and set of authorities, bounded by
+ * {@code anecdot.security.cache.max-size}, until settings are loaded again.
+ *
  * @author Stephan Grundner
  */
 @Service
 public class SecurityService  {
 
+    private static final class Rule {
+
+        private final Permission.Kind kind;
+        private final String pattern;
+        private final boolean literal;
+        private final Set<String> users;
+        private final Set<String> roles;
+
+        private Rule(Permission permission, AntPathMatcher pathMatcher) {
+            kind = permission.getKind();
+            pattern = permission.getPattern();
+            literal = !pathMatcher.isPattern(pattern);
+            users = new HashSet<>(permission.getUsers());
+            roles = new HashSet<>();
+            for (String role : permission.getRoles()) {
+                roles.add(role.toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    private static final class Rules {
+
+        private final ConcurrentMap<Settings, List<Rule>> rulesBySettings = new ConcurrentHashMap<>();
+        private final Cache<String, Boolean> decisions;
+
+        private Rules(Cache<String, Boolean> decisions) {
+            this.decisions = decisions;
+        }
+    }
+
+    private static final class Principal {
+
+        private final String email;
+        private final Set<String> authorities;
+        private final String fingerprint;
+
+        private Principal(String email, Set<String> authorities) {
+            this.email = email;
+            this.authorities = authorities;
+            fingerprint = email + "|" + String.join(",", authorities);
+        }
+    }
+
+    @Autowired
+    private Environment environment;
+
     @Autowired
     private SettingsService settingsService;
 
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    private final UrlPathHelper pathHelper = new UrlPathHelper();
+
+    private long cacheSize;
+    private volatile Rules rules;
+
     private String resolveEmail(Authentication authentication) {
         if (authentication instanceof KeycloakAuthenticationToken) {
             KeycloakAuthenticationToken authenticationToken = (KeycloakAuthenticationToken) authentication;
@@ -41,57 +110,101 @@ public class SecurityService  {
         return null;
     }
 
-    private boolean hasAccess(String path) {
-        AtomicBoolean granted = new AtomicBoolean(true);
+    private Principal resolvePrincipal(Authentication authentication) {
+        if (authentication == null) {
+            return new Principal(null, Collections.emptySet());
+        }
 
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        AntPathMatcher pathMatcher = new AntPathMatcher();
+        Set<String> authorities = new TreeSet<>();
+        for (GrantedAuthority authority : authentication.getAuthorities()) {
+            if (authority.getAuthority() != null) {
+                authorities.add(authority.getAuthority().toLowerCase(Locale.ROOT));
+            }
+        }
 
-        settingsService.eachSettingsForUri(path, settings -> {
+        return new Principal(resolveEmail(authentication), authorities);
+    }
 
-            for (Permission permission : settings.getPermissions()) {
-                String relativePath = path;
-                if (relativePath.startsWith(settings.getPath())) {
-                    relativePath = relativePath.substring(settings.getPath().length(), relativePath.length());
+    private Rules createRules() {
+        Cache<String, Boolean> decisions = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .build();
 
-                    if (!relativePath.startsWith("/")) {
-                        relativePath = "/" + relativePath;
-                    }
-                    boolean restricted = pathMatcher.match(permission.getPattern(), relativePath);
-                    if (restricted) {
+        return new Rules(decisions);
+    }
 
-                        if (permission.getUsers().isEmpty() && permission.getRoles().isEmpty()) {
-                            granted.set(permission.getKind() == Permission.Kind.ALLOW);
+    private List<Rule> compile(Settings settings) {
+        List<Rule> rules = new ArrayList<>(settings.getPermissions().size());
+        for (Permission permission : settings.getPermissions()) {
+            rules.add(new Rule(permission, pathMatcher));
+        }
 
-                            continue;
-                        }
+        return rules;
+    }
 
-                        String email = resolveEmail(authentication);
-                        boolean emailFound = permission.getUsers().contains(email);
-                        boolean authorityFound = authentication.getAuthorities().stream()
-                                .map(GrantedAuthority::getAuthority)
-                                .anyMatch(authority -> permission.getRoles().stream().anyMatch(it -> it.equalsIgnoreCase(authority)));
+    private Rules getRules() {
+        Rules current = rules;
+        if (current == null) {
+            synchronized (this) {
+                current = rules;
+                if (current == null) {
+                    current = createRules();
+                    rules = current;
+                }
+            }
+        }
 
-                        boolean match = (emailFound || authorityFound);
+        return current;
+    }
 
-                        if (permission.getKind() == Permission.Kind.ALLOW) {
-                            granted.set(match);
-                        } else {
+    @EventListener
+    public synchronized void onSettingsEvent(SettingsEvent event) {
+        rules = null;
+    }
 
-                            if (match) {
-                                granted.set(false);
-                            }
-                        }
-                    }
-                }
+    private static boolean isMatch(Rule rule, Principal principal) {
+        return (principal.email != null && rule.users.contains(principal.email))
+                || !Collections.disjoint(rule.roles, principal.authorities);
+    }
+
+    private boolean decide(List<Rule> rules, String path, Principal principal) {
+        boolean granted = true;
+        for (Rule rule : rules) {
+            boolean restricted = rule.literal
+                    ? rule.pattern.equals(path)
+                    : pathMatcher.match(rule.pattern, path);
+            if (!restricted) {
+                continue;
             }
-        });
 
-        return granted.get();
+            if (rule.users.isEmpty() && rule.roles.isEmpty()) {
+                granted = rule.kind == Permission.Kind.ALLOW;
+            } else if (rule.kind == Permission.Kind.ALLOW) {
+                granted = isMatch(rule, principal);
+            } else if (isMatch(rule, principal)) {
+                granted = false;
+            }
+        }
+
+        return granted;
+    }
+
+    private boolean hasAccess(String path) {
+        // rules are taken first, so a decision on settings replaced meanwhile ends up in a discarded cache
+        Rules current = getRules();
+        Settings settings = settingsService.getEffectiveSettings(path);
+        if (settings.getPermissions().isEmpty()) {
+            return true;
+        }
+
+        List<Rule> rules = current.rulesBySettings.computeIfAbsent(settings, this::compile);
+        Principal principal = resolvePrincipal(SecurityContextHolder.getContext().getAuthentication());
+
+        return current.decisions.get(path + "\n" + principal.fingerprint,
+                key -> decide(rules, path, principal));
     }
 
     public boolean hasAccess(HttpServletRequest request) {
-        UrlPathHelper pathHelper = new UrlPathHelper();
         String path = pathHelper.getPathWithinApplication(request);
 
         return hasAccess(path);
@@ -102,4 +215,9 @@ public class SecurityService  {
 
         return hasAccess(request);
     }
+
+    @PostConstruct
+    protected void init() {
+        cacheSize = environment.getProperty("anecdot.security.cache.max-size", Long.class, 10000L);
+    }
 }
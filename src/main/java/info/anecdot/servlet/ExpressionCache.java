@@ -0,0 +1,63 @@
+package info.anecdot.servlet;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Keeps parsed SpEL expressions by their source. Expressions are compiled
+ * to bytecode once they have been evaluated a few times, where SpEL is able
+ * to; others, and compiled ones failing on a later evaluation, are
+ * interpreted.
+ *
+ * @author Stephan Grundner
+ */
+@Component
+public class ExpressionCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExpressionCache.class);
+
+    @Autowired
+    private Environment environment;
+
+    private SpelExpressionParser parser;
+
+    private Cache<String, Expression> cache;
+
+    public Expression getExpression(String source) {
+        return cache.get(source, parser::parseExpression);
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    @PostConstruct
+    protected void init() {
+        long maxSize = environment.getProperty("anecdot.eval.cache.max-size", Long.class, 10000L);
+
+        parser = new SpelExpressionParser(new SpelParserConfiguration(SpelCompilerMode.MIXED,
+                ExpressionCache.class.getClassLoader()));
+        cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+    }
+
+    @PreDestroy
+    protected void destroy() {
+        LOG.info("Expression cache {}", cache.stats());
+    }
+}
@@ -10,8 +10,16 @@ import org.springframework.web.context.request.ServletRequestAttributes;
 import javax.servlet.http.HttpServletRequest;
 import java.io.Reader;
 import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
 
 /**
+ * Loads templates from the theme directory of the current site, which is
+ * the site of the current request or the one set for the current thread.
+ * Cache keys are the absolute template paths, so compiled templates are
+ * kept per theme.
+ *
  * @author Stephan Grundner
  */
 public class FileLoaderDecorator implements Loader<String> {
@@ -20,25 +28,65 @@ public class FileLoaderDecorator implements Loader<String> {
 
     private final FileLoader loader;
 
-    @Override
-    public Reader getReader(String templateName) {
-        HttpServletRequest request = ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes())
-                .getRequest();
+    private final ThreadLocal<Site> currentSite = new ThreadLocal<>();
 
-        Site site = siteService.findSiteByRequest(request);
-        Path directory = site.getThemeDirectory();
+    private final ConcurrentMap<Path, String> prefixByDirectory = new ConcurrentHashMap<>();
 
+    /**
+     * Resolves templates against the given site while running the supplier,
+     * for use outside of requests.
+     */
+    public <T> T withSite(Site site, Supplier<T> supplier) {
+        Site previous = currentSite.get();
+        currentSite.set(site);
         try {
-            String prefix = directory.toRealPath().toString();
-            if (!prefix.endsWith("/")) {
-                prefix += "/";
+            return supplier.get();
+        } finally {
+            if (previous != null) {
+                currentSite.set(previous);
+            } else {
+                currentSite.remove();
             }
-            templateName = prefix + templateName;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
+    }
+
+    private Site getCurrentSite() {
+        Site site = currentSite.get();
+        if (site != null) {
+            return site;
+        }
+
+        HttpServletRequest request = ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes())
+                .getRequest();
 
-        return loader.getReader(templateName);
+        return siteService.findSiteByRequest(request);
+    }
+
+    /**
+     * @return the real path of the site's theme directory, ending with a slash
+     */
+    public String getTemplatePrefix(Site site) {
+        return prefixByDirectory.computeIfAbsent(site.getThemeDirectory(), directory -> {
+            try {
+                String prefix = directory.toRealPath().toString();
+                if (!prefix.endsWith("/")) {
+                    prefix += "/";
+                }
+
+                return prefix;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    public String getSuffix() {
+        return loader.getSuffix();
+    }
+
+    @Override
+    public Reader getReader(String cacheKey) {
+        return loader.getReader(cacheKey);
     }
 
     @Override
@@ -63,7 +111,7 @@ public class FileLoaderDecorator implements Loader<String> {
 
     @Override
     public String createCacheKey(String templateName) {
-        return loader.createCacheKey(templateName);
+        return getTemplatePrefix(getCurrentSite()) + loader.createCacheKey(templateName);
     }
 
     public FileLoaderDecorator(SiteService siteService, FileLoader loader) {
@@ -1,75 +1,56 @@
 package info.anecdot.servlet;
 
 import info.anecdot.content.Site;
-import info.anecdot.content.SiteService;
 import info.anecdot.image.ImagingService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
-import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Component;
-import org.springframework.web.servlet.resource.AbstractResourceResolver;
-import org.springframework.web.servlet.resource.ResourceResolverChain;
 
-import javax.servlet.http.HttpServletRequest;
 import java.nio.file.Path;
-import java.util.List;
+import java.util.Map;
 
 /**
+ * Maps request paths to the files of a site: paths starting with
+ * {@code theme/} to its theme directory, all others to its content directory.
+ *
  * @author Stephan Grundner
  */
 @Component
-public class FileResourceResolver extends AbstractResourceResolver {
+public class FileResourceResolver {
 
     private static final String THEME_URL_PATH_PREFIX = "theme/";
 
     @Autowired
-    private ApplicationContext applicationContext;
+    private Map<String, ImagingService> imagingServiceByName;
 
-    @Autowired
-    private SiteService siteService;
-
-    @Autowired
-    private ImagingService imagingService;
-
-    @Override
-    protected Resource resolveResourceInternal(HttpServletRequest request, String requestPath, List<? extends Resource> locations, ResourceResolverChain chain) {
-        Site site = siteService.findSiteByRequest(request);
-
-        if (site != null && !site.isBusy()) {
-            Path directory = requestPath.startsWith(THEME_URL_PATH_PREFIX)
-                    ? site.getThemeDirectory()
-                    : site.getContentDirectory();
-
-            requestPath = resolveUrlPathInternal(requestPath, locations, chain);
-
-            String location = "file:" + directory.toString();
-            if (!location.endsWith("/")) {
-                location += "/";
-            }
-
-            location += requestPath;
-
-            if (imagingService.isImageRequest(request)) {
-
-                try {
-                    return imagingService.resolveImageResource(location, request);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-
-            return applicationContext.getResource(location);
+    public ImagingService getImagingService(Site site) {
+        ImagingService imagingService = imagingServiceByName.get(site.getImaging());
+        if (imagingService == null) {
+            throw new IllegalStateException("No imaging service named " + site.getImaging());
         }
 
-        return chain.resolveResource(request, requestPath, locations);
+        return imagingService;
     }
 
-    @Override
-    protected String resolveUrlPathInternal(String resourceUrlPath, List<? extends Resource> locations, ResourceResolverChain chain) {
-        if (resourceUrlPath.startsWith(THEME_URL_PATH_PREFIX)) {
-            return resourceUrlPath.substring(THEME_URL_PATH_PREFIX.length(), resourceUrlPath.length());
+    /**
+     * Maps a request path to the file it would be served from, or returns
+     * {@code null} if it lies outside the site's directories.
+     */
+    public Path resolvePath(Site site, String requestPath) {
+        boolean theme = requestPath.startsWith(THEME_URL_PATH_PREFIX);
+        Path directory = theme
+                ? site.getThemeDirectory()
+                : site.getContentDirectory();
+
+        if (directory == null) {
+            return null;
         }
 
-        return resourceUrlPath;
+        if (theme) {
+            requestPath = requestPath.substring(THEME_URL_PATH_PREFIX.length());
+        }
+
+        Path path = directory.resolve(requestPath).normalize();
+
+        return path.startsWith(directory.normalize()) ? path : null;
     }
 }
@@ -5,20 +5,18 @@ import com.mitchellbosecke.pebble.extension.Function;
 import com.mitchellbosecke.pebble.template.EvaluationContext;
 import com.mitchellbosecke.pebble.template.PebbleTemplate;
 import info.anecdot.content.*;
-import org.commonmark.parser.Parser;
-import org.commonmark.renderer.html.HtmlRenderer;
+import info.anecdot.search.SearchService;
 import org.springframework.context.ApplicationContext;
+import org.springframework.expression.BeanResolver;
 import org.springframework.expression.Expression;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.PropertyAccessor;
+import org.springframework.expression.spel.support.ReflectivePropertyAccessor;
 import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 
-import javax.persistence.EntityManager;
-import javax.persistence.TypedQuery;
 import javax.servlet.http.HttpServletRequest;
 import java.net.URI;
 import java.util.*;
@@ -43,8 +41,6 @@ public class FunctionsExtension extends AbstractExtension {
             SiteService siteService = applicationContext.getBean(SiteService.class);
             Site site = siteService.findSiteByRequest(request);
 
-            EntityManager entityManager = applicationContext.getBean(EntityManager.class);
-
             Number limit = (Number) args.get("limit");
             if (limit == null) {
                 limit = 255;
@@ -55,57 +51,85 @@ public class FunctionsExtension extends AbstractExtension {
                 offset = 0;
             }
 
-            StringBuilder ql = new StringBuilder();
-            ql.append("select i from Item i where i.site = :site");
-
-            String uri = (String) args.get("uri");
-            if (StringUtils.hasText(uri)) {
-                ql.append(" and i.uri like '").append(uri).append('\'');
+            ItemQuery query = new ItemQuery();
+            query.setUri((String) args.get("uri"));
+            query.setType((String) args.get("type"));
+            Object tags = args.get("tags");
+            if (tags instanceof Collection) {
+                query.setTags(((Collection<?>) tags).stream()
+                        .map(String::valueOf)
+                        .collect(Collectors.toList()));
+            } else if (tags != null) {
+                query.setTags(Arrays.asList(StringUtils.commaDelimitedListToStringArray(tags.toString())));
             }
+            query.setAnyTag("any".equals(args.get("match")));
+            query.setSort((String) args.get("sort"));
+            query.setAfter((String) args.get("after"));
+            query.setOffset(offset.intValue());
+            query.setLimit(limit.intValue());
 
-            String sort = (String) args.get("sort");
-            if (StringUtils.hasText(sort)) {
-                ql.append(" order by ")
-                        .append(sort);
-            }
+            ItemService itemService = applicationContext.getBean(ItemService.class);
+            return itemService.findItems(site, query).stream()
+                    .map(itemService::toMap)
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public List<String> getArgumentNames() {
+            return Arrays.asList("uri", "type", "tags", "match", "limit", "offset", "after", "sort");
+        }
+    }
+
+    private class SearchFunction implements Function {
+
+        @Override
+        public Object execute(Map<String, Object> args, PebbleTemplate self, EvaluationContext context, int lineNumber) {
+            HttpServletRequest request = currentRequest();
 
-            TypedQuery<Item> query = entityManager.createQuery(ql.toString(), Item.class);
-            query.setParameter("site", site);
+            SiteService siteService = applicationContext.getBean(SiteService.class);
+            Site site = siteService.findSiteByRequest(request);
 
-            List<Item> resultList = query
-                    .setMaxResults(limit.intValue())
-                    .setFirstResult(offset.intValue())
-                    .getResultList();
+            Number limit = (Number) args.get("limit");
+            if (limit == null) {
+                limit = 10;
+            }
 
+            Number offset = (Number) args.get("offset");
+            if (offset == null) {
+                offset = 0;
+            }
+
+            SearchService searchService = applicationContext.getBean(SearchService.class);
             ItemService itemService = applicationContext.getBean(ItemService.class);
-            return resultList.stream().map(itemService::toMap).collect(Collectors.toList());
+            return searchService.search(site, (String) args.get("query"), limit.intValue(), offset.intValue()).stream()
+                    .map(itemService::toMap)
+                    .collect(Collectors.toList());
         }
 
         @Override
         public List<String> getArgumentNames() {
-            return Arrays.asList("uri", "tags", "limit", "offset", "sort");
+            return Arrays.asList("query", "limit", "offset");
         }
     }
 
     private class EvalFunction implements Function {
 
+        private final BeanResolver beanResolver = (context, beanName) -> applicationContext.getBean(beanName);
+        private final List<PropertyAccessor> propertyAccessors = Collections.singletonList(new ReflectivePropertyAccessor());
+
         @Override
         public Object execute(Map<String, Object> args, PebbleTemplate self, EvaluationContext evaluationContext, int lineNumber) {
-            ExpressionParser expressionParser = new SpelExpressionParser();
-            Expression expression = expressionParser.parseExpression(args.get("expr").toString());
-            org.springframework.expression.EvaluationContext expressionEvaluationContext = new StandardEvaluationContext();
+            ExpressionCache expressionCache = applicationContext.getBean(ExpressionCache.class);
+            Expression expression = expressionCache.getExpression(args.get("expr").toString());
+
             Object model = evaluationContext.getVariable("page");
-            ((StandardEvaluationContext) expressionEvaluationContext).setRootObject(model);
-            ServletRequestAttributes servletRequestAttributes = (ServletRequestAttributes) RequestContextHolder
-                    .currentRequestAttributes();
+            StandardEvaluationContext expressionEvaluationContext = new StandardEvaluationContext(model);
+            expressionEvaluationContext.setPropertyAccessors(propertyAccessors);
+            expressionEvaluationContext.setBeanResolver(beanResolver);
+
             SiteService siteService = applicationContext.getBean(SiteService.class);
-            ItemService itemService = applicationContext.getBean(ItemService.class);
-            String host = servletRequestAttributes.getRequest().getServerName();
-            Site site = siteService.findSiteByName(host);
+            Site site = siteService.findSiteByRequest(currentRequest());
             expressionEvaluationContext.setVariable("site", site);
-            ((StandardEvaluationContext) expressionEvaluationContext).setBeanResolver(((context, beanName) -> {
-                return applicationContext.getBean(beanName);
-            }));
 
             return expression.getValue(expressionEvaluationContext);
         }
@@ -120,14 +144,9 @@ public class FunctionsExtension extends AbstractExtension {
 
         @Override
         public Object execute(Map<String, Object> args, PebbleTemplate self, EvaluationContext evaluationContext, int lineNumber) {
-            String text = (String) args.get("text");
-            if (StringUtils.hasLength(text)) {
-                return HtmlRenderer.builder().build()
-                        .render(Parser.builder().build()
-                                .parse(text));
-            }
+            MarkdownService markdownService = applicationContext.getBean(MarkdownService.class);
 
-            return text;
+            return markdownService.render((String) args.get("text"));
         }
 
         @Override
@@ -193,6 +212,7 @@ public class FunctionsExtension extends AbstractExtension {
     public Map<String, Function> getFunctions() {
         Map<String, Function> functions = new HashMap<>();
         functions.put("items", new ItemsFunction());
+        functions.put("search", new SearchFunction());
         functions.put("eval", new EvalFunction());
         functions.put("md", new MarkdownFunction());
         functions.put("url", new UrlFunction());
@@ -3,22 +3,30 @@ package info.anecdot.servlet;
 import info.anecdot.content.Item;
 import info.anecdot.content.ItemService;
 import info.anecdot.content.Site;
+import info.anecdot.content.SiteService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StringUtils;
 import org.springframework.web.HttpRequestHandler;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.View;
 import org.springframework.web.servlet.ViewResolver;
+import org.springframework.web.util.ContentCachingResponseWrapper;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.time.ZoneId;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 /**
  * @author Stephan Grundner
@@ -32,6 +40,44 @@ public class ItemHandler implements HttpRequestHandler {
     @Autowired
     private ViewResolver viewResolver;
 
+    @Autowired
+    private SiteService siteService;
+
+    @Autowired
+    private PageCache pageCache;
+
+    /**
+     * The tag is weak, because the same page may be sent gzip compressed or
+     * not. Authenticated users get their own tag, since permissions can
+     * change what a page shows. Pages may list other items, so the tag
+     * changes with any item of the site.
+     */
+    private String createETag(HttpServletRequest request, Site site, Item item) {
+        StringBuilder builder = new StringBuilder()
+                .append(item.getLastModified()).append('|')
+                .append(item.getSyncId()).append('|')
+                .append(siteService.getThemeVersion(site)).append('|')
+                .append(itemService.getContentVersion(site));
+
+        Principal principal = request.getUserPrincipal();
+        if (principal != null) {
+            builder.append('|').append(principal.getName());
+        }
+
+        String hash = DigestUtils.md5DigestAsHex(builder.toString().getBytes(StandardCharsets.UTF_8));
+
+        return "W/\"" + hash + "\"";
+    }
+
+    private long getLastModified(Site site, Item item) {
+        long lastModified = item.getLastModified() != null
+                ? item.getLastModified().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+                : -1;
+
+        return Math.max(Math.max(lastModified, siteService.getThemeVersion(site)),
+                itemService.getContentVersion(site));
+    }
+
     @Override
     public void handleRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         Site site = (Site) request.getAttribute(Site.class.getName());
@@ -40,9 +86,26 @@ public class ItemHandler implements HttpRequestHandler {
 //        Locale locale = localeResolver.resolveLocale(request);
 //        modelAndView.addObject("locale", locale);
 
-        Item item = itemService.findItemBySiteAndURI(site, request.getRequestURI());
+        Item item = (Item) request.getAttribute(Item.class.getName());
+        if (item == null) {
+            item = itemService.findItemBySiteAndURI(site, request.getRequestURI());
+        }
+
         if (item != null) {
-            request.setAttribute(Item.class.getName(), item);
+            if (StringUtils.hasText(site.getPageCacheControl())) {
+                response.setHeader(HttpHeaders.CACHE_CONTROL, site.getPageCacheControl());
+            }
+
+            ServletWebRequest webRequest = new ServletWebRequest(request, response);
+            if (webRequest.checkNotModified(createETag(request, site, item), getLastModified(site, item))) {
+                return;
+            }
+
+            PageCache.Key key = pageCache.createKey(request, site, item);
+            if (key != null && pageCache.write(key, request, response)) {
+                return;
+            }
+
             modelAndView.addObject("site", site);
             modelAndView.addObject("page", itemService.toMap(item));
 
@@ -60,11 +123,20 @@ public class ItemHandler implements HttpRequestHandler {
             modelAndView.addObject("params", params);
 
             modelAndView.setViewName(item.getType());
-            response.addHeader("Cache-Control", "private, max-age=" + TimeUnit.HOURS.toHours(1));
 
             try {
                 View view = viewResolver.resolveViewName(modelAndView.getViewName(), site.getLocale());
-                view.render(modelAndView.getModel(), request, response);
+                if (key == null) {
+                    view.render(modelAndView.getModel(), request, response);
+                } else {
+                    ContentCachingResponseWrapper responseWrapper = new ContentCachingResponseWrapper(response);
+                    view.render(modelAndView.getModel(), request, responseWrapper);
+                    if (responseWrapper.getStatus() == HttpServletResponse.SC_OK) {
+                        pageCache.put(key, responseWrapper.getContentType(), responseWrapper.getContentAsByteArray());
+                        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+                    }
+                    responseWrapper.copyBodyToResponse();
+                }
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -0,0 +1,84 @@
+package info.anecdot.servlet;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import info.anecdot.content.Item;
+import info.anecdot.content.ItemEvent;
+import info.anecdot.content.Knot;
+import info.anecdot.content.Sequence;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Renders markdown to HTML with a single parser and renderer, both of which
+ * are thread-safe, and keeps the results for texts rendered before.
+ * <p>
+ * The cache is keyed by an MD5 digest of the text, so it holds no copies of
+ * the texts, and bounded by {@code anecdot.markdown.cache.max-size}
+ * characters of HTML. A hit still costs hashing the text, which is far
+ * cheaper than parsing and rendering it again. Knots with the attribute
+ * {@code format="markdown"} are rendered as soon as their item is loaded,
+ * so pages find them already in the cache.
+ *
+ * @author Stephan Grundner
+ */
+@Service
+public class MarkdownService {
+
+    @Autowired
+    private Environment environment;
+
+    private final Parser parser = Parser.builder().build();
+    private final HtmlRenderer renderer = HtmlRenderer.builder().build();
+
+    private Cache<String, String> cache;
+
+    public String render(String text) {
+        if (!StringUtils.hasLength(text)) {
+            return text;
+        }
+
+        String key = DigestUtils.md5DigestAsHex(text.getBytes(StandardCharsets.UTF_8));
+
+        return cache.get(key, it -> renderer.render(parser.parse(text)));
+    }
+
+    private void prerender(Knot knot) {
+        if ("markdown".equals(knot.getAttributes().get("format"))) {
+            render(knot.getValue());
+        }
+
+        for (Sequence sequence : knot.getSequences()) {
+            for (Knot child : sequence.getKnots()) {
+                prerender(child);
+            }
+        }
+    }
+
+    @EventListener
+    public void onItemEvent(ItemEvent event) {
+        Item item = event.getItem();
+        if (event.getKind() == ItemEvent.Kind.LOADED && item != null) {
+            prerender(item);
+        }
+    }
+
+    @PostConstruct
+    protected void init() {
+        long maxSize = environment.getProperty("anecdot.markdown.cache.max-size", Long.class, 16L * 1024 * 1024);
+
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher((String key, String html) -> key.length() + html.length())
+                .build();
+    }
+}
@@ -0,0 +1,272 @@
+package info.anecdot.servlet;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import info.anecdot.content.FileEvent;
+import info.anecdot.content.Item;
+import info.anecdot.content.ItemEvent;
+import info.anecdot.content.ItemService;
+import info.anecdot.content.Site;
+import info.anecdot.content.SiteService;
+import info.anecdot.content.SnapshotEvent;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps rendered pages in memory, gzip compressed.
+ * <p>
+ * A page is keyed by its site and URI, the version of the item (its
+ * modification time and sync id), the versions of the site's theme and
+ * content and the site's locale, plus the values of the request parameters
+ * listed in {@code anecdot.page-cache.params}. Requests carrying any other
+ * parameter, requests other than {@code GET} and requests of authenticated
+ * users are not cached. All pages of a site are dropped whenever one of its
+ * items or theme files changes, or once the items of its initial scan are
+ * published; a page rendered meanwhile is stored under the previous content
+ * version and is never hit again.
+ *
+ * @author Stephan Grundner
+ */
+@Component
+public class PageCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PageCache.class);
+
+    public static final class Key {
+
+        private final String site;
+        private final String uri;
+        private final LocalDateTime lastModified;
+        private final String syncId;
+        private final long themeVersion;
+        private final long contentVersion;
+        private final Locale locale;
+        private final String params;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return themeVersion == key.themeVersion &&
+                    contentVersion == key.contentVersion &&
+                    site.equals(key.site) &&
+                    uri.equals(key.uri) &&
+                    Objects.equals(lastModified, key.lastModified) &&
+                    Objects.equals(syncId, key.syncId) &&
+                    Objects.equals(locale, key.locale) &&
+                    params.equals(key.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(site, uri, lastModified, syncId, themeVersion, contentVersion, locale, params);
+        }
+
+        private Key(String site, String uri, LocalDateTime lastModified, String syncId,
+                    long themeVersion, long contentVersion, Locale locale, String params) {
+            this.site = site;
+            this.uri = uri;
+            this.lastModified = lastModified;
+            this.syncId = syncId;
+            this.themeVersion = themeVersion;
+            this.contentVersion = contentVersion;
+            this.locale = locale;
+            this.params = params;
+        }
+    }
+
+    private static final class Page {
+
+        private final String contentType;
+        private final byte[] compressed;
+        private final int length;
+
+        private Page(String contentType, byte[] compressed, int length) {
+            this.contentType = contentType;
+            this.compressed = compressed;
+            this.length = length;
+        }
+    }
+
+    @Autowired
+    private SiteService siteService;
+
+    @Autowired
+    private ItemService itemService;
+
+    private final boolean enabled;
+    private final Set<String> params;
+    private final Cache<Key, Page> cache;
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        Enumeration<String> values = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+        while (values.hasMoreElements()) {
+            if (values.nextElement().toLowerCase(Locale.ROOT).contains("gzip")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isAuthenticated() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+
+        return authentication != null
+                && authentication.isAuthenticated()
+                && !(authentication instanceof AnonymousAuthenticationToken);
+    }
+
+    private String toParams(HttpServletRequest request) {
+        Map<String, String[]> parameterMap = request.getParameterMap();
+        if (parameterMap.isEmpty()) {
+            return "";
+        }
+
+        if (!params.containsAll(parameterMap.keySet())) {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        new TreeMap<>(parameterMap).forEach((name, values) -> {
+            for (String value : values) {
+                builder.append(name).append('=').append(value).append('&');
+            }
+        });
+
+        return builder.toString();
+    }
+
+    /**
+     * @return the key the page for this request is cached under, or
+     * {@code null} if the response must not be cached
+     */
+    public Key createKey(HttpServletRequest request, Site site, Item item) {
+        if (!enabled || !"GET".equals(request.getMethod()) || isAuthenticated()) {
+            return null;
+        }
+
+        String params = toParams(request);
+        if (params == null) {
+            return null;
+        }
+
+        return new Key(site.getName(), item.getUri().toString(), item.getLastModified(), item.getSyncId(),
+                siteService.getThemeVersion(site), itemService.getContentVersion(site), site.getLocale(), params);
+    }
+
+    /**
+     * Writes the cached page for the given key, if there is one.
+     *
+     * @return {@code true} if the response has been written
+     */
+    public boolean write(Key key, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Page page = cache.getIfPresent(key);
+        if (page == null) {
+            return false;
+        }
+
+        response.setContentType(page.contentType);
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        OutputStream outputStream = response.getOutputStream();
+        if (acceptsGzip(request)) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+            response.setContentLength(page.compressed.length);
+            outputStream.write(page.compressed);
+        } else {
+            response.setContentLength(page.length);
+            try (GZIPInputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(page.compressed))) {
+                IOUtils.copy(inputStream, outputStream);
+            }
+        }
+
+        return true;
+    }
+
+    public void put(Key key, String contentType, byte[] content) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4 + 64);
+        try (GZIPOutputStream outputStream = new GZIPOutputStream(compressed)) {
+            outputStream.write(content);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        cache.put(key, new Page(contentType, compressed.toByteArray(), content.length));
+    }
+
+    public void invalidate(Site site) {
+        String name = site.getName();
+        cache.asMap().keySet().removeIf(key -> key.site.equals(name));
+    }
+
+    /**
+     * Items loaded while their site is busy are not visible yet, so pages
+     * are only dropped once, when they are published.
+     */
+    @EventListener
+    public void onItemEvent(ItemEvent event) {
+        if (!event.getSite().isBusy()) {
+            invalidate(event.getSite());
+        }
+    }
+
+    @EventListener
+    public void onSnapshotEvent(SnapshotEvent event) {
+        invalidate(event.getSite());
+    }
+
+    @EventListener
+    public void onFileEvent(FileEvent event) {
+        if (event.getOrigin() == FileEvent.Origin.THEME && event.getKind() != FileEvent.Kind.VISITED) {
+            invalidate(event.getSite());
+        }
+    }
+
+    public PageCache(Environment environment) {
+        enabled = environment.getProperty("anecdot.page-cache.enabled", Boolean.class, true);
+
+        String[] names = environment.getProperty("anecdot.page-cache.params", String[].class, new String[0]);
+        params = new HashSet<>();
+        for (String name : names) {
+            if (StringUtils.hasText(name)) {
+                params.add(name.trim());
+            }
+        }
+
+        long maxSize = environment.getProperty("anecdot.page-cache.max-size", Long.class, 64L * 1024 * 1024);
+        Duration ttl = environment.getProperty("anecdot.page-cache.ttl", Duration.class, Duration.ofMinutes(10));
+
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher((Key key, Page page) -> page.compressed.length + key.uri.length() + key.params.length())
+                .expireAfterWrite(ttl.toMillis(), TimeUnit.MILLISECONDS)
+                .build();
+
+        LOG.info("Page cache {} (max-size={}, ttl={})", enabled ? "enabled" : "disabled", maxSize, ttl);
+    }
+}
@@ -0,0 +1,369 @@
+package info.anecdot.servlet;
+
+import info.anecdot.content.FileEvent;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps gzip and, if the {@code brotli} command is available, brotli
+ * compressed variants of text based theme files, compressed at the highest
+ * level once whenever a theme file is visited, created or modified.
+ * <p>
+ * Variants are named after a hash of the file's path, size and modification
+ * time, so they survive restarts and are never served for a file that has
+ * changed in the meantime. A variant is only kept if it is smaller than the
+ * file itself.
+ *
+ * @author Stephan Grundner
+ */
+@Component
+public class PrecompressedAssets {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PrecompressedAssets.class);
+
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    public static final class Variant {
+
+        private final String encoding;
+        private final Path path;
+        private final long length;
+
+        public String getEncoding() {
+            return encoding;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        private Variant(String encoding, Path path, long length) {
+            this.encoding = encoding;
+            this.path = path;
+            this.length = length;
+        }
+    }
+
+    private static final class Entry {
+
+        private final long size;
+        private final long lastModified;
+        private final Map<String, Variant> variantByEncoding;
+
+        private Entry(long size, long lastModified, Map<String, Variant> variantByEncoding) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.variantByEncoding = variantByEncoding;
+        }
+    }
+
+    @Autowired
+    private Environment environment;
+
+    private Path directory;
+    private Set<String> extensions;
+    private String brotli;
+
+    private final ConcurrentMap<Path, Entry> entryByPath = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    private boolean isCompressible(Path path) {
+        return extensions.contains(FilenameUtils.getExtension(path.toString()).toLowerCase(Locale.ROOT));
+    }
+
+    private static String createKey(Path path, BasicFileAttributes attributes) {
+        String value = path + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis();
+
+        return DigestUtils.md5DigestAsHex(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private interface Compressor {
+
+        void compress(Path source, Path target) throws IOException;
+    }
+
+    private static void gzip(Path source, Path target) throws IOException {
+        try (OutputStream outputStream = new GZIPOutputStream(Files.newOutputStream(target)) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            Files.copy(source, outputStream);
+        }
+    }
+
+    private void brotli(Path source, Path target) throws IOException {
+        Process process = new ProcessBuilder(brotli, "--quality=11", "--force",
+                "--output=" + target.toAbsolutePath(), source.toAbsolutePath().toString())
+                .redirectErrorStream(true)
+                .start();
+        try {
+            StreamUtils.drain(process.getInputStream());
+            if (!process.waitFor(60, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("Timed out compressing " + source);
+            }
+
+            if (process.exitValue() != 0) {
+                throw new IOException("Error compressing " + source + ", brotli exited with " + process.exitValue());
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing " + source, e);
+        }
+    }
+
+    private Variant compress(Path source, long size, String key, String encoding, String extension,
+                             Compressor compressor) throws IOException {
+        Path path = directory.resolve(key.substring(0, 2)).resolve(key + "." + extension);
+        if (!Files.isRegularFile(path)) {
+            Files.createDirectories(path.getParent());
+            Path temp = Files.createTempFile(path.getParent(), TEMP_PREFIX, "." + extension);
+            try {
+                compressor.compress(source, temp);
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        long length = Files.size(path);
+        if (length >= size) {
+            return null;
+        }
+
+        return new Variant(encoding, path, length);
+    }
+
+    private void delete(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+
+        for (Variant variant : entry.variantByEncoding.values()) {
+            try {
+                Files.deleteIfExists(variant.path);
+            } catch (IOException e) {
+                LOG.warn("Error deleting " + variant.path, e);
+            }
+        }
+    }
+
+    private void build(Path path) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            remove(path);
+
+            return;
+        }
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Entry current = entryByPath.get(path);
+        if (current != null && current.size == attributes.size() && current.lastModified == lastModified) {
+            return;
+        }
+
+        String key = createKey(path, attributes);
+        Map<String, Variant> variantByEncoding = new HashMap<>();
+        try {
+            Variant variant = compress(path, attributes.size(), key, "gzip", "gz", PrecompressedAssets::gzip);
+            if (variant != null) {
+                variantByEncoding.put(variant.encoding, variant);
+            }
+
+            if (brotli != null) {
+                variant = compress(path, attributes.size(), key, "br", "br", this::brotli);
+                if (variant != null) {
+                    variantByEncoding.put(variant.encoding, variant);
+                }
+            }
+
+            BasicFileAttributes compressed = Files.readAttributes(path, BasicFileAttributes.class);
+            if (compressed.size() != attributes.size()
+                    || compressed.lastModifiedTime().toMillis() != lastModified) {
+                return;
+            }
+        } catch (IOException e) {
+            LOG.warn("Error compressing " + path, e);
+        }
+
+        Entry previous = entryByPath.put(path, new Entry(attributes.size(), lastModified, variantByEncoding));
+        if (previous != null && (previous.size != attributes.size() || previous.lastModified != lastModified)) {
+            delete(previous);
+        }
+    }
+
+    private void remove(Path path) {
+        delete(entryByPath.remove(path));
+    }
+
+    private static boolean accepts(String acceptEncoding, String encoding) {
+        for (String token : StringUtils.tokenizeToStringArray(acceptEncoding, ",")) {
+            String[] parts = StringUtils.tokenizeToStringArray(token, ";");
+            if (parts.length == 0 || !parts[0].equalsIgnoreCase(encoding)) {
+                continue;
+            }
+
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parts[i].substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private Entry getEntry(Path path, BasicFileAttributes attributes) {
+        Entry entry = entryByPath.get(path.toAbsolutePath().normalize());
+        if (entry == null
+                || entry.size != attributes.size()
+                || entry.lastModified != attributes.lastModifiedTime().toMillis()
+                || entry.variantByEncoding.isEmpty()) {
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * @return whether there are compressed variants of the given file, in
+     * which case responses for it vary by {@code Accept-Encoding}
+     */
+    public boolean hasVariants(Path path, BasicFileAttributes attributes) {
+        return getEntry(path, attributes) != null;
+    }
+
+    /**
+     * @return the smallest variant of the given file the client accepts, or
+     * {@code null} if the file itself is to be sent
+     */
+    public Variant findVariant(Path path, BasicFileAttributes attributes, String acceptEncoding) {
+        Entry entry = getEntry(path, attributes);
+        if (entry == null || !StringUtils.hasText(acceptEncoding)) {
+            return null;
+        }
+
+        Variant smallest = null;
+        for (Variant variant : entry.variantByEncoding.values()) {
+            if (accepts(acceptEncoding, variant.encoding)
+                    && (smallest == null || variant.length < smallest.length)) {
+                smallest = variant;
+            }
+        }
+
+        return smallest;
+    }
+
+    @EventListener
+    public void onFileEvent(FileEvent event) {
+        Path path = event.getPath().toAbsolutePath().normalize();
+        if (event.getOrigin() != FileEvent.Origin.THEME || !isCompressible(path)) {
+            return;
+        }
+
+        try {
+            if (event.getKind() == FileEvent.Kind.DELETED) {
+                executor.execute(() -> remove(path));
+            } else {
+                executor.execute(() -> build(path));
+            }
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Not compressing {}, queue full", path);
+        }
+    }
+
+    private String findBrotli() {
+        String command = environment.getProperty("anecdot.precompress.brotli", "brotli");
+        if (!StringUtils.hasText(command)) {
+            return null;
+        }
+
+        try {
+            Process process = new ProcessBuilder(command, "--version")
+                    .redirectErrorStream(true)
+                    .start();
+            StreamUtils.drain(process.getInputStream());
+            if (process.waitFor(10, TimeUnit.SECONDS) && process.exitValue() == 0) {
+                return command;
+            }
+
+            process.destroyForcibly();
+        } catch (IOException e) {
+            LOG.debug("No brotli command {}", command);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        LOG.info("Brotli not available, theme files are precompressed with gzip only");
+
+        return null;
+    }
+
+    @PostConstruct
+    protected void init() throws IOException {
+        directory = Paths.get(environment.getProperty("anecdot.precompress.directory",
+                Paths.get(System.getProperty("java.io.tmpdir"), "anecdot", "precompressed").toString()));
+        extensions = new HashSet<>(Arrays.asList(environment.getProperty("anecdot.precompress.extensions",
+                String[].class, new String[] {"css", "js", "svg", "json", "xml", "txt", "html", "map"})));
+        brotli = findBrotli();
+
+        Files.createDirectories(directory);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (path.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+
+        int capacity = environment.getProperty("anecdot.precompress.queue-capacity", Integer.class, 10000);
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity), runnable -> {
+            Thread thread = new Thread(runnable, "precompressor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    protected void destroy() {
+        executor.shutdownNow();
+    }
+}
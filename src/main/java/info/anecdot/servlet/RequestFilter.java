@@ -64,7 +64,7 @@ public class RequestFilter implements Filter {
 
                 Item item = itemService.findItemBySiteAndURI(site, uri);
                 if (item != null) {
-
+                    request.setAttribute(Item.class.getName(), item);
                     itemHandler.handleRequest(request, response);
 
                     return;
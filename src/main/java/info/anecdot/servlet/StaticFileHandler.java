@@ -0,0 +1,356 @@
+package info.anecdot.servlet;
+
+import info.anecdot.content.Site;
+import info.anecdot.content.SiteService;
+import info.anecdot.image.DerivativeStore;
+import info.anecdot.image.ImagingService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.HttpRequestHandler;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Serves the files of a site's content and theme directories.
+ * <p>
+ * Conditional requests are answered from file metadata before anything is
+ * opened; the entity tag is derived from the size and modification time of
+ * the file, the query string, which selects image variants, and the image
+ * format or content encoding negotiated for the request. Theme files with
+ * {@link PrecompressedAssets precompressed variants} are sent in the
+ * smallest encoding the client accepts. {@code HEAD} requests are answered
+ * from metadata alone and never convert images; for a derivative not stored
+ * yet, the length is left out. Single and multiple byte ranges are
+ * supported. Larger files and single ranges are handed to Tomcat's sendfile
+ * where the connector supports it, and are otherwise transferred from a
+ * {@link FileChannel}; image derivatives always are, since they are only
+ * leased from the store while the request is handled.
+ *
+ * @author Stephan Grundner
+ */
+@Component
+public class StaticFileHandler implements HttpRequestHandler {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static final long SENDFILE_THRESHOLD = 48 * 1024;
+    private static final int MAX_RANGES = 16;
+
+    @Autowired
+    private SiteService siteService;
+
+    @Autowired
+    private FileResourceResolver fileResourceResolver;
+
+    @Autowired
+    private PrecompressedAssets precompressedAssets;
+
+    private final UrlPathHelper pathHelper = new UrlPathHelper();
+
+    private static String createETag(BasicFileAttributes attributes, String queryString) {
+        StringBuilder builder = new StringBuilder("\"")
+                .append(Long.toHexString(attributes.size())).append('-')
+                .append(Long.toHexString(attributes.lastModifiedTime().toMillis()));
+
+        if (StringUtils.hasLength(queryString)) {
+            builder.append('-').append(Integer.toHexString(queryString.hashCode()));
+        }
+
+        return builder.append('"').toString();
+    }
+
+    private static BasicFileAttributes readAttributes(Path file) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static String getContentType(HttpServletRequest request, Path file) {
+        String fileName = file.getFileName().toString();
+        String contentType = request.getServletContext().getMimeType(fileName);
+        if (contentType == null) {
+            contentType = MediaTypeFactory.getMediaType(fileName)
+                    .map(Object::toString)
+                    .orElse("application/octet-stream");
+        }
+
+        return contentType;
+    }
+
+    /**
+     * @return the requested ranges, or an empty list if the whole file is to
+     * be sent
+     */
+    private static List<HttpRange> getRanges(HttpServletRequest request, String eTag, long lastModified) {
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (!StringUtils.hasText(range) || !"GET".equals(request.getMethod())) {
+            return Collections.emptyList();
+        }
+
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (StringUtils.hasText(ifRange)) {
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                if (!ifRange.equals(eTag)) {
+                    return Collections.emptyList();
+                }
+            } else if (request.getDateHeader(HttpHeaders.IF_RANGE) != lastModified / 1000 * 1000) {
+                return Collections.emptyList();
+            }
+        }
+
+        List<HttpRange> ranges = HttpRange.parseRanges(range);
+
+        return ranges.size() <= MAX_RANGES ? ranges : Collections.emptyList();
+    }
+
+    private static void transfer(Path file, long start, long count, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = start;
+            long end = start + count;
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+
+                position += transferred;
+            }
+        }
+    }
+
+    /**
+     * @param sendfile whether the file may be handed to sendfile, which reads
+     * it only after the request has been handled
+     */
+    private static void send(HttpServletRequest request, HttpServletResponse response,
+                             Path file, long start, long count, boolean sendfile) throws IOException {
+        if (sendfile && count >= SENDFILE_THRESHOLD && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + count);
+
+            return;
+        }
+
+        transfer(file, start, count, Channels.newChannel(response.getOutputStream()));
+    }
+
+    private static void sendMultipart(HttpServletResponse response, Path file, String contentType,
+                                      List<HttpRange> ranges, long length) throws IOException {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+
+        ServletOutputStream outputStream = response.getOutputStream();
+        WritableByteChannel channel = Channels.newChannel(outputStream);
+        for (HttpRange range : ranges) {
+            long start = range.getRangeStart(length);
+            long end = range.getRangeEnd(length);
+
+            String headers = "\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": bytes " + start + "-" + end + "/" + length + "\r\n\r\n";
+            outputStream.write(headers.getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+
+            transfer(file, start, end - start + 1, channel);
+        }
+
+        outputStream.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public void handleRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            response.setHeader(HttpHeaders.ALLOW, "GET, HEAD");
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+
+            return;
+        }
+
+        Site site = siteService.findSiteByRequest(request);
+        if (site == null || site.isBusy()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+
+            return;
+        }
+
+        String requestPath = StringUtils.trimLeadingCharacter(pathHelper.getLookupPathForRequest(request), '/');
+        Path file = fileResourceResolver.resolvePath(site, requestPath);
+        BasicFileAttributes attributes = file != null ? readAttributes(file) : null;
+        if (attributes == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+
+            return;
+        }
+
+        String queryString = request.getQueryString();
+        ImagingService imagingService = fileResourceResolver.getImagingService(site);
+        boolean image = imagingService.isImageRequest(request);
+        String format = null;
+        String contentType = getContentType(request, file);
+        PrecompressedAssets.Variant variant = null;
+        BasicFileAttributes variantAttributes = null;
+        if (image) {
+            format = imagingService.negotiateFormat(site, file, request);
+            queryString += "&format=" + format;
+
+            if (!site.getImageFormats().isEmpty()) {
+                response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+            }
+        } else if (precompressedAssets.hasVariants(file, attributes)) {
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+            variant = precompressedAssets.findVariant(file, attributes,
+                    request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+            variantAttributes = variant != null ? readAttributes(variant.getPath()) : null;
+            if (variantAttributes != null) {
+                queryString += "&encoding=" + variant.getEncoding();
+            } else {
+                variant = null;
+            }
+        }
+
+        if (StringUtils.hasText(site.getResourceCacheControl())) {
+            response.setHeader(HttpHeaders.CACHE_CONTROL, site.getResourceCacheControl());
+        }
+
+        String eTag = createETag(attributes, queryString);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (new ServletWebRequest(request, response).checkNotModified(eTag, lastModified)) {
+            return;
+        }
+
+        if (image) {
+            String size = request.getParameter("size");
+            DerivativeStore.Lease lease;
+            try {
+                if ("HEAD".equals(method)) {
+                    if (!imagingService.isDerivable(site, size, format)) {
+                        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+
+                        return;
+                    }
+
+                    lease = imagingService.findDerivative(site, file, size, format);
+                    if (lease == null) {
+                        // not converted yet, which a HEAD request should not cause just to tell the length
+                        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+                        response.setContentType(getContentType(request, Paths.get("image." + format)));
+
+                        return;
+                    }
+                } else {
+                    lease = imagingService.getDerivative(site, file, size, format);
+                }
+            } catch (IllegalArgumentException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+
+                return;
+            }
+
+            if (lease == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+
+                return;
+            }
+
+            // the derivative may be deleted once the lease is closed, so it is not left to sendfile
+            try {
+                file = lease.getPath();
+                sendFile(request, response, file, lease.getSize(), getContentType(request, file),
+                        eTag, lastModified, false);
+            } finally {
+                lease.close();
+            }
+
+            return;
+        }
+
+        if (variant != null) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, variant.getEncoding());
+            file = variant.getPath();
+            attributes = variantAttributes;
+        }
+
+        sendFile(request, response, file, attributes.size(), contentType, eTag, lastModified, true);
+    }
+
+    private void sendFile(HttpServletRequest request, HttpServletResponse response, Path file, long length,
+                          String contentType, String eTag, long lastModified, boolean sendfile) throws IOException {
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        List<HttpRange> ranges;
+        try {
+            ranges = getRanges(request, eTag, lastModified);
+            for (HttpRange range : ranges) {
+                if (range.getRangeStart(length) >= length) {
+                    throw new IllegalArgumentException("Unsatisfiable range " + range);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+
+            return;
+        }
+
+        if (ranges.size() > 1) {
+            sendMultipart(response, file, contentType, ranges, length);
+
+            return;
+        }
+
+        response.setContentType(contentType);
+
+        long start = 0;
+        long count = length;
+        if (ranges.size() == 1) {
+            HttpRange range = ranges.get(0);
+            start = range.getRangeStart(length);
+            long end = range.getRangeEnd(length);
+            count = end - start + 1;
+
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        }
+
+        response.setContentLengthLong(count);
+
+        if ("HEAD".equals(request.getMethod()) || count == 0) {
+            return;
+        }
+
+        send(request, response, file, start, count, sendfile);
+    }
+}
@@ -0,0 +1,166 @@
+package info.anecdot.servlet;
+
+import com.mitchellbosecke.pebble.PebbleEngine;
+import com.mitchellbosecke.pebble.boot.autoconfigure.PebbleProperties;
+import com.mitchellbosecke.pebble.cache.PebbleCache;
+import com.mitchellbosecke.pebble.template.PebbleTemplate;
+import info.anecdot.content.FileEvent;
+import info.anecdot.content.Site;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps compiled templates, keyed by their absolute path as created by
+ * {@link FileLoaderDecorator}, for as long as their files remain unchanged.
+ * Changes reported by the theme watchers invalidate exactly the affected
+ * templates; templates extending or including them pick up the change,
+ * since these are looked up when rendering. A template whose compilation
+ * overlapped with any change is not kept, as it may reflect the old file.
+ *
+ * @author Stephan Grundner
+ */
+@Component
+public class ThemeTemplateCache implements PebbleCache<Object, PebbleTemplate> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThemeTemplateCache.class);
+
+    @Autowired
+    private FileLoaderDecorator loader;
+
+    @Autowired
+    private ObjectProvider<PebbleEngine> pebbleEngine;
+
+    @Autowired
+    private PebbleProperties pebbleProperties;
+
+    private final ConcurrentMap<Object, PebbleTemplate> templateByKey = new ConcurrentHashMap<>();
+
+    /**
+     * Counts changes of theme files, so that templates compiled while one
+     * happened can be told apart.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    @Override
+    public PebbleTemplate computeIfAbsent(Object key, Function<? super Object, ? extends PebbleTemplate> mappingFunction) {
+        PebbleTemplate template = templateByKey.get(key);
+        if (template != null) {
+            return template;
+        }
+
+        long before = version.get();
+        template = templateByKey.computeIfAbsent(key, mappingFunction);
+        if (version.get() != before) {
+            // may have been parsed from the file as it was before the change
+            templateByKey.remove(key, template);
+        }
+
+        return template;
+    }
+
+    @Override
+    public void invalidateAll() {
+        templateByKey.clear();
+    }
+
+    private String getTemplateName(Site site, Path path) {
+        String name = site.getThemeDirectory().normalize().relativize(path.normalize()).toString();
+        String suffix = loader.getSuffix();
+        if (suffix != null && name.endsWith(suffix)) {
+            name = name.substring(0, name.length() - suffix.length());
+        }
+
+        return name;
+    }
+
+    @EventListener
+    public void onFileEvent(FileEvent event) {
+        if (event.getOrigin() != FileEvent.Origin.THEME || event.getKind() == FileEvent.Kind.VISITED) {
+            return;
+        }
+
+        Site site = event.getSite();
+        String key = loader.getTemplatePrefix(site) + getTemplateName(site, event.getPath());
+        version.incrementAndGet();
+        if (event.getKind() == FileEvent.Kind.DELETED) {
+            templateByKey.keySet().removeIf(it -> it.equals(key) || it.toString().startsWith(key + "/"));
+        } else {
+            templateByKey.remove(key);
+        }
+    }
+
+    /**
+     * @return the suffix of template files, which the view resolver appends
+     * to view names unless the loader does
+     */
+    private String getTemplateSuffix() {
+        String suffix = loader.getSuffix();
+        if (suffix == null) {
+            suffix = pebbleProperties.getSuffix();
+        }
+
+        return suffix != null ? suffix : "";
+    }
+
+    /**
+     * Compiles all templates of the site's theme in parallel, in the
+     * background. Failures are logged.
+     */
+    public CompletableFuture<Void> precompile(Site site) {
+        Path directory = site.getThemeDirectory();
+        if (directory == null || !Files.isDirectory(directory)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String suffix = getTemplateSuffix();
+
+        return CompletableFuture.runAsync(() -> {
+            List<String> names;
+            try (Stream<Path> paths = Files.walk(directory)) {
+                names = paths.filter(Files::isRegularFile)
+                        .filter(path -> path.toString().endsWith(suffix))
+                        .map(path -> getTemplateName(site, path))
+                        .collect(Collectors.toList());
+            } catch (IOException e) {
+                LOG.warn("Error listing templates of site " + site.getName(), e);
+
+                return;
+            }
+
+            PebbleEngine engine = pebbleEngine.getObject();
+            long count = names.parallelStream().filter(name -> loader.withSite(site, () -> {
+                try {
+                    engine.getTemplate(name);
+
+                    return true;
+                } catch (Exception e) {
+                    LOG.warn("Error compiling template {} of site {}: {}", name, site.getName(), e.getMessage());
+
+                    return false;
+                }
+            })).count();
+
+            LOG.info("Compiled {} of {} templates of site {}", count, names.size(), site.getName());
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                LOG.error("Error precompiling templates of site " + site.getName(), e);
+            }
+        });
+    }
+}
@@ -0,0 +1,21 @@
+package info.anecdot.settings;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published whenever a settings file has been (re)loaded.
+ *
+ * @author Stephan Grundner
+ */
+public class SettingsEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    public Settings getSettings() {
+        return (Settings) getSource();
+    }
+
+    public SettingsEvent(Settings settings) {
+        super(settings);
+    }
+}
@@ -13,6 +13,7 @@ import org.w3c.dom.Node;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathFactory;
 import java.io.InputStream;
@@ -23,45 +24,121 @@ import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.function.Consumer;
 
 /**
+ * Loads the {@code .settings.xml} files of sites and answers which settings
+ * apply to a path.
+ * <p>
+ * Settings are kept in a tree by directory, where each node also holds the
+ * effective settings of its directory: the locale closest to it, and the
+ * permissions and ignore patterns of all settings from the root down, with
+ * their patterns made absolute. These are merged whenever settings are
+ * loaded, so looking them up for a path walks the tree without allocating.
+ * Parsers and XPath instances, which are not thread-safe, are kept per
+ * thread.
+ *
  * @author Stephan Grundner
  */
 @Service
 public class SettingsService implements DomAndXPathSupport {
 
+    private static final class SettingsNode {
+
+        private final String name;
+        private final String path;
+        private volatile SettingsNode[] children = new SettingsNode[0];
+        private volatile Settings settings;
+        private volatile Settings effectiveSettings;
+
+        private SettingsNode(String name, String path) {
+            this.name = name;
+            this.path = path;
+        }
+
+        private SettingsNode getChild(String uri, int start, int end) {
+            for (SettingsNode child : children) {
+                if (child.name.length() == end - start && uri.regionMatches(start, child.name, 0, end - start)) {
+                    return child;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private static final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+
+    static {
+        documentBuilderFactory.setIgnoringElementContentWhitespace(true);
+        documentBuilderFactory.setNamespaceAware(true);
+    }
+
+    private static final ThreadLocal<DocumentBuilder> documentBuilder = ThreadLocal.withInitial(() -> {
+        try {
+            return documentBuilderFactory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private static final ThreadLocal<XPath> xPath = ThreadLocal.withInitial(() ->
+            XPathFactory.newInstance().newXPath());
+
     @Autowired
     private ApplicationContext applicationContext;
 
     private final Map<String, Settings> settingsByUri = new ConcurrentSkipListMap<>();
 
+    private final SettingsNode root = new SettingsNode("", "/");
+
+    public SettingsService() {
+        root.effectiveSettings = merge(root.path, null, null);
+    }
+
     public Collection<Settings> getAllSettings() {
         return Collections.unmodifiableCollection(settingsByUri.values());
     }
 
-    private void eachSegmentForUri(String uri, Consumer<String> consumer) {
-        if (uri.endsWith("/") && uri.length() > 1) {
-            uri = uri.substring(1, uri.length() - 1);
+    /**
+     * @return the node of the deepest directory of the uri; a trailing slash
+     * is ignored, so a directory is governed by the settings of its parent
+     */
+    private SettingsNode findNode(String uri, Consumer<Settings> consumer) {
+        int end = uri.length();
+        if (end > 1 && uri.charAt(end - 1) == '/') {
+            end--;
         }
 
-        if (!uri.startsWith("/")) {
-            uri = "/" + uri;
-        }
+        SettingsNode node = root;
+        int start = uri.startsWith("/") ? 1 : 0;
+        while (true) {
+            if (consumer != null && node.settings != null) {
+                consumer.accept(node.settings);
+            }
 
-        for (int i = 0; i < uri.length(); i++) {
-            char c = uri.charAt(i);
-            if (c == '/' || i == uri.length() - 1) {
-                String segment = uri.substring(0, i+1);
-                consumer.accept(segment);
+            int slash = uri.indexOf('/', start);
+            if (slash < 0 || slash >= end) {
+                return node;
             }
+
+            SettingsNode child = node.getChild(uri, start, slash);
+            if (child == null) {
+                return node;
+            }
+
+            node = child;
+            start = slash + 1;
         }
     }
 
     public void eachSettingsForUri(String uri, Consumer<Settings> consumer) {
-        eachSegmentForUri(uri, segment -> {
-            Settings settings = settingsByUri.get(segment);
-            if (settings != null) {
-                consumer.accept(settings);
-            }
-        });
+        findNode(uri, consumer);
+    }
+
+    /**
+     * @return the settings in effect for the uri, merged from all settings on
+     * the way to it
+     */
+    public Settings getEffectiveSettings(String uri) {
+        return findNode(uri, null).effectiveSettings;
     }
 
     public Set<String> getUris() {
@@ -72,6 +149,91 @@ public class SettingsService implements DomAndXPathSupport {
         return settingsByUri.get(uri);
     }
 
+    private static String toAbsolutePattern(String path, String pattern) {
+        if (pattern == null) {
+            return path + "**";
+        }
+
+        return path + StringUtils.trimLeadingCharacter(pattern, '/');
+    }
+
+    private static Settings merge(String path, Settings parent, Settings settings) {
+        Settings effectiveSettings = new Settings(path);
+        List<Permission> permissions = new ArrayList<>();
+        List<String> ignorePatterns = new ArrayList<>();
+
+        if (parent != null) {
+            effectiveSettings.setLocale(parent.getLocale());
+            permissions.addAll(parent.getPermissions());
+            ignorePatterns.addAll(parent.getIgnorePatterns());
+        }
+
+        if (settings != null) {
+            if (settings.getLocale() != null) {
+                effectiveSettings.setLocale(settings.getLocale());
+            }
+
+            if (settings.getPermissions() != null) {
+                for (Permission permission : settings.getPermissions()) {
+                    Permission absolute = new Permission(permission.getKind());
+                    absolute.setPattern(toAbsolutePattern(path, permission.getPattern()));
+                    absolute.setRoles(Collections.unmodifiableList(new ArrayList<>(permission.getRoles())));
+                    absolute.setUsers(Collections.unmodifiableList(new ArrayList<>(permission.getUsers())));
+                    permissions.add(absolute);
+                }
+            }
+
+            if (settings.getIgnorePatterns() != null) {
+                for (String ignorePattern : settings.getIgnorePatterns()) {
+                    ignorePatterns.add(toAbsolutePattern(path, ignorePattern));
+                }
+            }
+        }
+
+        effectiveSettings.setPermissions(Collections.unmodifiableList(permissions));
+        effectiveSettings.setIgnorePatterns(Collections.unmodifiableList(ignorePatterns));
+
+        return effectiveSettings;
+    }
+
+    private static void mergeAll(SettingsNode node, Settings parent) {
+        node.effectiveSettings = merge(node.path, parent, node.settings);
+        for (SettingsNode child : node.children) {
+            mergeAll(child, node.effectiveSettings);
+        }
+    }
+
+    private synchronized void putSettings(Settings settings) {
+        settingsByUri.put(settings.getPath(), settings);
+
+        SettingsNode parent = null;
+        SettingsNode node = root;
+        for (String name : StringUtils.tokenizeToStringArray(settings.getPath(), "/")) {
+            SettingsNode child = null;
+            for (SettingsNode it : node.children) {
+                if (it.name.equals(name)) {
+                    child = it;
+                    break;
+                }
+            }
+
+            if (child == null) {
+                child = new SettingsNode(name, node.path + name + "/");
+                child.effectiveSettings = node.effectiveSettings;
+
+                SettingsNode[] children = Arrays.copyOf(node.children, node.children.length + 1);
+                children[children.length - 1] = child;
+                node.children = children;
+            }
+
+            parent = node;
+            node = child;
+        }
+
+        node.settings = settings;
+        mergeAll(node, parent != null ? parent.effectiveSettings : null);
+    }
+
     private void applyLocale(Node settingsNode, Settings settings) {
         nodes("/settings/locale", settingsNode).forEach(node -> {
             String languageTag = node.getTextContent();
@@ -115,6 +277,17 @@ public class SettingsService implements DomAndXPathSupport {
         settings.setPermissions(permissions);
     }
 
+    private void applyIgnore(Node document, Settings settings) {
+        List<String> ignorePatterns = new ArrayList<>();
+
+        nodes("/settings/ignore", document)
+                .map(node -> attribute("path", node))
+                .filter(StringUtils::hasText)
+                .forEach(ignorePatterns::add);
+
+        settings.setIgnorePatterns(ignorePatterns);
+    }
+
     public void reloadSettings(Site site, Path file)  {
         String path = site.getContentDirectory().relativize(file).toString();
         path = FilenameUtils.removeExtension(path);
@@ -126,10 +299,6 @@ public class SettingsService implements DomAndXPathSupport {
         Settings settings = new Settings(path);
 
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-
-            dbf.setIgnoringElementContentWhitespace(true);
-            dbf.setNamespaceAware(true);
 //            SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
 //            Resource schemaResource = applicationContext.getResource("classpath:/schema/settings.xsd");
 //            try (InputStream inputStream = schemaResource.getInputStream()) {
@@ -140,23 +309,28 @@ public class SettingsService implements DomAndXPathSupport {
 //                throw new RuntimeException(e);
 //            }
 
-            DocumentBuilder parser = dbf.newDocumentBuilder();
+            DocumentBuilder parser = documentBuilder.get();
 
             try (InputStream inputStream = Files.newInputStream(file)) {
                 Document document = parser.parse(inputStream);
 
                 applyLocale(document, settings);
                 applySecurity(document, settings);
+                applyIgnore(document, settings);
+            } finally {
+                parser.reset();
             }
 
-            settingsByUri.put(path, settings);
+            putSettings(settings);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+
+        applicationContext.publishEvent(new SettingsEvent(settings));
     }
 
     @Override
     public XPath getXPath() {
-        return XPathFactory.newInstance().newXPath();
+        return xPath.get();
     }
 }
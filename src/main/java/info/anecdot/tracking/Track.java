@@ -10,10 +10,11 @@ import java.time.LocalDateTime;
 public class Track {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "track")
+    @SequenceGenerator(name = "track", sequenceName = "track_seq", allocationSize = 100)
     private Long id;
 
-    @ManyToOne(optional = false)
+    @ManyToOne(optional = false, fetch = FetchType.LAZY)
     private Visitor visitor;
 
     private String url;
@@ -1,81 +1,264 @@
 package info.anecdot.tracking;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.time.LocalDateTime;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.UUID;
-import java.util.stream.Stream;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
+ * Records requests without touching the database on the request thread.
+ * <p>
+ * Hits are put into a bounded, lock-free buffer and dropped once it is
+ * full. A single background thread drains the buffer, resolves visitors by
+ * cookie through an in-memory cache and inserts visitors and tracks in
+ * batches; a failed batch is retried hit by hit.
+ *
  * @author Stephan Grundner
  */
 @Service
 public class TrackingService {
 
+    private static final Logger LOG = LoggerFactory.getLogger(TrackingService.class);
+
+    private static final String COOKIE_NAME = "VISITOR";
+
+    private static final class Hit {
+
+        private final String cookieValue;
+        private final String url;
+        private final String referer;
+        private final String userAgent;
+        private final LocalDateTime moment;
+
+        private Hit(String cookieValue, String url, String referer, String userAgent, LocalDateTime moment) {
+            this.cookieValue = cookieValue;
+            this.url = url;
+            this.referer = referer;
+            this.userAgent = userAgent;
+            this.moment = moment;
+        }
+    }
+
+    @Autowired
+    private Environment environment;
+
     @Autowired
     private VisitorRepository visitorRepository;
 
     @Autowired
-    private TrackRepository trackRepository;
+    private PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final Queue<Hit> hits = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Cache<String, Long> visitorIdByCookieValue = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .build();
 
-    private Visitor saveVisitor(Visitor visitor, boolean flush) {
-        if (flush) {
-            return visitorRepository.saveAndFlush(visitor);
+    private int capacity;
+    private int batchSize;
+    private TransactionTemplate transactionTemplate;
+
+    private volatile boolean running;
+    private Thread writer;
+
+    /**
+     * @return the number of hits dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static Cookie findCookie(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (cookie != null && COOKIE_NAME.equalsIgnoreCase(cookie.getName())) {
+                    return cookie;
+                }
+            }
         }
 
-        return visitorRepository.save(visitor);
+        return null;
     }
 
-    private synchronized Visitor findOrCreateVisitor(Cookie cookie) {
+    /**
+     * Cookie values come from clients, only those of the form we issue are
+     * accepted.
+     */
+    private static boolean isValid(Cookie cookie) {
         String value = cookie.getValue();
-
-        Visitor visitor = visitorRepository.findByCookieValue(value);
-        if (visitor == null) {
-            visitor = new Visitor();
-            visitor.setCookieValue(value);
-            visitor = saveVisitor(visitor, true);
+        if (value == null || value.length() != 36) {
+            return false;
         }
 
-        return visitor;
+        try {
+            return UUID.fromString(value).toString().equalsIgnoreCase(value);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
     }
 
-    public Track track(HttpServletRequest request, HttpServletResponse response) {
-        Cookie cookie = Stream.of(Optional.ofNullable(request.getCookies()).orElse(new Cookie[] {}))
-                .filter(Objects::nonNull)
-                .filter(it -> "VISITOR".equalsIgnoreCase(it.getName()))
-                .findFirst().orElse(null);
-        if (cookie == null) {
-            cookie = new Cookie("VISITOR", UUID.randomUUID().toString());
+    public void track(HttpServletRequest request, HttpServletResponse response) {
+        Cookie cookie = findCookie(request);
+        if (cookie == null || !isValid(cookie)) {
+            cookie = new Cookie(COOKIE_NAME, UUID.randomUUID().toString());
             cookie.setMaxAge(Integer.MAX_VALUE);
             response.addCookie(cookie);
         }
 
-        Visitor visitor = findOrCreateVisitor(cookie);
-        request.setAttribute(Visitor.class.getName(), visitor);
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+
+            return;
+        }
+
+        hits.offer(new Hit(cookie.getValue(),
+                request.getRequestURL().toString(),
+                request.getHeader(HttpHeaders.REFERER),
+                request.getHeader(HttpHeaders.USER_AGENT),
+                LocalDateTime.now()));
+    }
+
+    private Map<String, Long> resolveVisitorIds(List<Hit> batch) {
+        Map<String, Long> visitorIds = new HashMap<>();
+        Set<String> unknown = new HashSet<>();
+
+        for (Hit hit : batch) {
+            Long id = visitorIdByCookieValue.getIfPresent(hit.cookieValue);
+            if (id != null) {
+                visitorIds.put(hit.cookieValue, id);
+            } else {
+                unknown.add(hit.cookieValue);
+            }
+        }
+
+        if (!unknown.isEmpty()) {
+            for (Visitor visitor : visitorRepository.findAllByCookieValueIn(unknown)) {
+                visitorIds.put(visitor.getCookieValue(), visitor.getId());
+                unknown.remove(visitor.getCookieValue());
+            }
+
+            for (String cookieValue : unknown) {
+                Visitor visitor = new Visitor();
+                visitor.setCookieValue(cookieValue);
+                entityManager.persist(visitor);
+                visitorIds.put(cookieValue, visitor.getId());
+            }
+        }
+
+        return visitorIds;
+    }
+
+    private void writeBatch(List<Hit> batch) {
+        Map<String, Long> visitorIds = transactionTemplate.execute(status -> {
+            Map<String, Long> ids = resolveVisitorIds(batch);
+
+            for (Hit hit : batch) {
+                Track track = new Track();
+                track.setVisitor(entityManager.getReference(Visitor.class, ids.get(hit.cookieValue)));
+                track.setUrl(hit.url);
+                track.setReferer(hit.referer);
+                track.setUserAgent(hit.userAgent);
+                track.setMoment(hit.moment);
+                entityManager.persist(track);
+            }
+
+            entityManager.flush();
+            entityManager.clear();
+
+            return ids;
+        });
+
+        visitorIdByCookieValue.putAll(visitorIds);
+    }
+
+    private void write(List<Hit> batch) {
+        try {
+            writeBatch(batch);
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                LOG.error("Error writing track of " + batch.get(0).url, e);
+            } else {
+                batch.forEach(hit -> write(Collections.singletonList(hit)));
+            }
+        }
+    }
+
+    private List<Hit> drain() {
+        List<Hit> batch = new ArrayList<>(batchSize);
+        Hit hit;
+        while (batch.size() < batchSize && (hit = hits.poll()) != null) {
+            batch.add(hit);
+        }
+
+        size.addAndGet(-batch.size());
 
-        Track track = new Track();
-        track.setVisitor(visitor);
-        track.setUrl(request.getRequestURL().toString());
+        return batch;
+    }
+
+    private void run() {
+        long reported = 0;
+
+        while (running || size.get() > 0) {
+            List<Hit> batch = drain();
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
 
-        String referer = (String) request.getAttribute(HttpHeaders.REFERER);
-        track.setReferer(referer);
+            write(batch);
 
-        String userAgent = request.getHeader("User-Agent");
-        track.setUserAgent(userAgent);
+            long count = dropped.get();
+            if (count > reported) {
+                LOG.warn("Dropped {} tracks so far, tracking buffer full", count);
+                reported = count;
+            }
+        }
+    }
 
-        LocalDateTime moment = LocalDateTime.now();
-        track.setMoment(moment);
+    @PostConstruct
+    protected void init() {
+        capacity = environment.getProperty("anecdot.tracking.capacity", Integer.class, 10000);
+        batchSize = environment.getProperty("anecdot.tracking.batch-size", Integer.class, 100);
+        transactionTemplate = new TransactionTemplate(transactionManager);
 
-        track = trackRepository.save(track);
-        request.setAttribute(Track.class.getName(), track);
+        running = true;
+        writer = new Thread(this::run, "tracking-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
 
-        return track;
+    @PreDestroy
+    protected void destroy() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(TimeUnit.SECONDS.toMillis(10));
     }
 }
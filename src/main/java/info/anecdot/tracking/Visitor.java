@@ -9,7 +9,8 @@ import javax.persistence.*;
 public class Visitor {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "visitor")
+    @SequenceGenerator(name = "visitor", sequenceName = "visitor_seq", allocationSize = 100)
     private Long id;
 
     @Column(unique = true)
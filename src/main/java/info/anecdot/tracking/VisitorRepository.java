@@ -2,10 +2,15 @@ package info.anecdot.tracking;
 
 import org.springframework.data.jpa.repository.JpaRepository;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * @author Stephan Grundner
  */
 public interface VisitorRepository extends JpaRepository<Visitor, Long> {
 
     Visitor findByCookieValue(String cookieValue);
+
+    List<Visitor> findAllByCookieValueIn(Collection<String> cookieValues);
 }